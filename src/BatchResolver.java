@@ -0,0 +1,198 @@
+import java.io.PrintWriter;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/** Resolves a list of queries, such as a file of host names, with a bounded number of lookups
+ * in progress at a time. Each line holds a host name, optionally followed by a record type (A
+ * by default); blank lines and anything after a '#' are ignored. Lines are read as lookups
+ * complete, so a list of any length is resolved in constant memory, and the result of each
+ * lookup is written as soon as it completes, in completion order rather than input order.
+ *
+ * <p>Results are written either as tab-separated values, one line per record with the host
+ * name, record type, status, TTL and result (or a single line with an empty TTL and result if
+ * there is no record), or as JSON lines, one object per query holding the status, the time
+ * the lookup took and the list of records. The status is NOERROR, NXDOMAIN, NODATA (the name
+ * exists but has no records of the type), SERVFAIL (the query could not be resolved) or
+ * INVALID (the line could not be parsed).</p>
+ */
+public class BatchResolver {
+
+    /** Output formats of the results.
+     */
+    public enum Format {
+        TSV, JSONL
+    }
+
+    private final Resolver resolver;
+    private final DNSCache cache;
+    private final int concurrency;
+    private final Format format;
+
+    private final LongAdder resolvedQueries = new LongAdder();
+    private final LongAdder failedQueries = new LongAdder();
+
+    /** Creates a batch resolver.
+     *
+     * @param resolver    Resolver used for each lookup.
+     * @param concurrency Maximum number of lookups in progress at the same time.
+     * @param format      Format the results are written in.
+     */
+    public BatchResolver(Resolver resolver, int concurrency, Format format) {
+        this.resolver = resolver;
+        this.cache = resolver.getCache();
+        this.concurrency = concurrency;
+        this.format = format;
+    }
+
+    /** Resolves every query of a list and writes the results, returning once all the lookups
+     * have completed. The output is flushed whenever no other result is about to be written,
+     * and before returning.
+     *
+     * @param lines Queries, one per line.
+     * @param out   Writer the results are written to.
+     * @throws InterruptedException If the calling thread is interrupted while waiting for a
+     *                              lookup to complete. Lookups in progress are abandoned.
+     */
+    public void run(Iterator<String> lines, PrintWriter out) throws InterruptedException {
+        Semaphore window = new Semaphore(concurrency);
+        AtomicLong pending = new AtomicLong();
+        ExecutorService workers = Executors.newFixedThreadPool(concurrency, runnable -> {
+            Thread thread = new Thread(runnable, "dns-batch-lookup");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            while (lines.hasNext()) {
+                String line = lines.next().split("#", 2)[0].trim();
+                if (line.isEmpty())
+                    continue;
+                window.acquire();
+                pending.incrementAndGet();
+                workers.execute(() -> {
+                    try {
+                        String result = resolve(line);
+                        synchronized (out) {
+                            out.print(result);
+                            // Results are written in bulk while lookups keep completing
+                            if (pending.decrementAndGet() == 0)
+                                out.flush();
+                        }
+                    } finally {
+                        window.release();
+                    }
+                });
+            }
+            // Wait for every permit to be back, i.e., every lookup to have completed
+            window.acquire(concurrency);
+        } finally {
+            workers.shutdownNow();
+            synchronized (out) {
+                out.flush();
+            }
+        }
+    }
+
+    /** Number of queries resolved so far, including those that failed.
+     */
+    public long getResolvedQueryCount() {
+        return resolvedQueries.sum();
+    }
+
+    /** Number of queries that could not be resolved or parsed.
+     */
+    public long getFailedQueryCount() {
+        return failedQueries.sum();
+    }
+
+    /** Resolves the query of a line, and returns its results formatted for the output.
+     */
+    private String resolve(String line) {
+        String[] fields = line.split("\\s+");
+        RecordType type = RecordType.A;
+        if (fields.length == 2) {
+            try {
+                type = RecordType.valueOf(fields[1].toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException e) {
+                type = null;
+            }
+        }
+        if (fields.length > 2 || type == null || type == RecordType.OTHER) {
+            resolvedQueries.increment();
+            failedQueries.increment();
+            return format(fields[0], fields.length == 2 ? fields[1] : "", "INVALID", Set.of(), 0);
+        }
+
+        DNSNode node = new DNSNode(fields[0], type);
+        long start = System.nanoTime();
+        Set<ResourceRecord> results;
+        try {
+            results = resolver.resolve(node);
+        } catch (RuntimeException e) {
+            results = Set.of();
+        }
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        String status = "NOERROR";
+        if (results.isEmpty()) {
+            if (cache.hasNameError(node))
+                status = "NXDOMAIN";
+            else if (cache.hasNegativeResult(node))
+                status = "NODATA";
+            else {
+                status = "SERVFAIL";
+                failedQueries.increment();
+            }
+        }
+        resolvedQueries.increment();
+        return format(fields[0], type.name(), status, results, elapsed);
+    }
+
+    private String format(String hostName, String type, String status, Set<ResourceRecord> results, long elapsed) {
+        StringBuilder builder = new StringBuilder();
+        if (format == Format.TSV) {
+            if (results.isEmpty())
+                builder.append(hostName).append('\t').append(type).append('\t').append(status).append("\t\t\n");
+            for (ResourceRecord record : results)
+                builder.append(hostName).append('\t').append(type).append('\t').append(status).append('\t')
+                        .append(record.getTTL()).append('\t').append(record.getTextResult()).append('\n');
+            return builder.toString();
+        }
+
+        builder.append("{\"name\":");
+        appendJsonString(builder, hostName);
+        builder.append(",\"type\":");
+        appendJsonString(builder, type);
+        builder.append(",\"status\":\"").append(status).append("\",\"ms\":").append(elapsed).append(",\"answers\":[");
+        boolean first = true;
+        for (ResourceRecord record : results) {
+            if (!first)
+                builder.append(',');
+            first = false;
+            builder.append("{\"ttl\":").append(record.getTTL()).append(",\"data\":");
+            appendJsonString(builder, record.getTextResult());
+            builder.append('}');
+        }
+        return builder.append("]}\n").toString();
+    }
+
+    private static void appendJsonString(StringBuilder builder, String value) {
+        builder.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\')
+                builder.append('\\').append(c);
+            else if (c < 0x20)
+                builder.append(String.format("\\u%04x", (int) c));
+            else
+                builder.append(c);
+        }
+        builder.append('"');
+    }
+}
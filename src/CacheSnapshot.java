@@ -0,0 +1,119 @@
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/** Saves the contents of a {@link DNSCache} to a file and loads them back, so that a restarted
+ * resolver starts with a warm cache rather than resolving every name again. The file format
+ * is described in {@link DNSCache#writeSnapshot(java.io.DataOutput)}; records are stored with
+ * their absolute expiration time, and those that expired while the resolver was down are
+ * skipped when the snapshot is loaded.
+ *
+ * <p>Snapshots may be saved periodically in the background (see {@link #start(long)}), and
+ * are saved once more when closed. Saving traverses the cache without pausing lookups, and
+ * writes a temporary file that atomically replaces the previous snapshot once complete, so
+ * an interrupted save leaves the previous snapshot intact. Loading maps the file in memory
+ * and decodes it in place.</p>
+ */
+public class CacheSnapshot implements Closeable {
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final DNSCache cache;
+    private final Path file;
+    private ScheduledExecutorService scheduler;
+
+    /** Creates a snapshot of a cache. Nothing is read or written until requested.
+     *
+     * @param cache Cache to be saved and loaded.
+     * @param file  File the snapshot is kept in.
+     */
+    public CacheSnapshot(DNSCache cache, Path file) {
+        this.cache = cache;
+        this.file = file;
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    /** Adds the records of the snapshot file, if it exists, to the cache.
+     *
+     * @return Number of nodes loaded, or zero if there is no snapshot file.
+     * @throws IOException If the file could not be read or is not a valid snapshot.
+     */
+    public long load() throws IOException {
+        if (!Files.exists(file))
+            return 0;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            return cache.loadSnapshot(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    /** Writes the current contents of the cache to the snapshot file. Saves requested while
+     * another one is in progress wait for it to finish.
+     *
+     * @return Number of nodes saved.
+     * @throws IOException If the snapshot could not be written. The previous snapshot, if
+     *                     any, is kept.
+     */
+    public synchronized long save() throws IOException {
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        long saved;
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(Files.newOutputStream(temporary), BUFFER_SIZE))) {
+            saved = cache.writeSnapshot(out);
+        } catch (IOException e) {
+            Files.deleteIfExists(temporary);
+            throw e;
+        }
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return saved;
+    }
+
+    /** Starts saving the cache periodically on a background thread. Does nothing if periodic
+     * saves were already started.
+     *
+     * @param intervalSeconds Number of seconds between the end of a save and the next one.
+     */
+    public synchronized void start(long intervalSeconds) {
+        if (scheduler != null)
+            return;
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "dns-cache-snapshot");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                save();
+            } catch (IOException e) {
+                System.err.println("Could not save cache snapshot (" + e.getMessage() + ").");
+            }
+        }, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    /** Stops periodic saves, if started, and saves the cache one last time.
+     *
+     * @throws IOException If the last snapshot could not be written.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (scheduler != null) {
+                scheduler.shutdown();
+                scheduler = null;
+            }
+        }
+        save();
+    }
+}
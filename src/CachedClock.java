@@ -0,0 +1,35 @@
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/** Coarse wall clock for hot paths. The current time is read once every few milliseconds by a
+ * background thread, and reading it is a single volatile load. Used to check record expiration
+ * on every cache read without calling into the system clock.
+ */
+public final class CachedClock {
+
+    private static final long TICK_MILLIS = 5;
+
+    private static volatile long now = System.currentTimeMillis();
+
+    static {
+        ScheduledExecutorService ticker = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "dns-cached-clock");
+            thread.setDaemon(true);
+            return thread;
+        });
+        ticker.scheduleAtFixedRate(() -> now = System.currentTimeMillis(),
+                TICK_MILLIS, TICK_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    private CachedClock() {
+    }
+
+    /** Returns the current time, accurate to within a few milliseconds.
+     *
+     * @return The current time, in milliseconds since the epoch.
+     */
+    public static long currentTimeMillis() {
+        return now;
+    }
+}
@@ -1,90 +1,1149 @@
-import java.util.*;
-import java.util.function.BiConsumer;
-
-/** This class handles a cache of DNS results. It is based on a map that links nodes (queries)
- * to a set of resource records (results). Cached results are only maintained for the duration
- * of the TTL (time-to-live) returned by the server, and are deleted before being returned to
- * the user.
- */
-public class DNSCache {
-
-    private static DNSCache instance = new DNSCache();
-
-    private Map<DNSNode, Map<ResourceRecord, ResourceRecord>> cachedResults = new TreeMap<>();
-
-    /** Singleton retrieval method. Only one instance of the DNS cache can be created. This
-     * method returns the single DNS cache instance.
-     *
-     * @return Instance of a DNS cache.
-     */
-    public static DNSCache getInstance() {
-        return instance;
-    }
-
-    /** Returns a set of resource records already cached for a particular query. If no results
-     * are cached for the specified query, returns an empty set. Expired results are removed
-     * from the cache before being returned. This method does not perform the query itself, it
-     * only returns previously cached results.
-     *
-     * @param node DNS query (host name and record type) to obtain cached results.
-     * @return A potentially empty set of resources associated to the query.
-     */
-    public Set<ResourceRecord> getCachedResults(DNSNode node) {
-        Map<ResourceRecord, ResourceRecord> results = cachedResults.get(node);
-        if (results == null)
-            return Collections.emptySet();
-
-        results.keySet().removeIf(record -> !record.isStillValid());
-        return Collections.unmodifiableSet(results.keySet());
-    }
-
-    /** Adds a specific resource record to the DNS cache. If the cache already has an equivalent
-     * resource record, the existing record is replaced if the new one expires after the existing
-     * record, otherwise the existing record is maintained.
-     *
-     * @param record Resource record, possibly obtained from a DNS server, containing the result
-     *               of a DNS query.
-     */
-    public void addResult(ResourceRecord record) {
-
-        if (!record.isStillValid()) return;
-
-        Map<ResourceRecord, ResourceRecord> results = cachedResults.get(record.getNode());
-        if (results == null) {
-            results = new HashMap<>();
-            cachedResults.put(record.getNode(), results);
-        }
-
-        ResourceRecord oldRecord = results.get(record);
-        if (oldRecord == null || oldRecord.expiresBefore(record))
-            results.put(record, record);
-    }
-
-    /** Perform a specific action for each query and its set of cached records. This action can
-     * be specified using a lambda expression or method name. Expired records are removed before
-     * the action is performed.
-     *
-     * @param consumer Action to be performed for each query and set of records.
-     */
-    public void forEachNode(BiConsumer<DNSNode, Set<ResourceRecord>> consumer) {
-        for (Map.Entry<DNSNode, Map<ResourceRecord, ResourceRecord>> entry : cachedResults.entrySet()) {
-            entry.getValue().keySet().removeIf(record -> !record.isStillValid());
-            if (!entry.getValue().keySet().isEmpty())
-                consumer.accept(entry.getKey(), entry.getValue().keySet());
-        }
-    }
-
-    /** Perform a specific action for each query and individual record. This action can be
-     * specified using a lambda expression or method name. Expired records are removed before
-     * the action is performed.
-     *
-     * @param consumer Action to be performed for each query and record.
-     */
-    public void forEachRecord(BiConsumer<DNSNode, ResourceRecord> consumer) {
-        for (Map.Entry<DNSNode, Map<ResourceRecord, ResourceRecord>> entry : cachedResults.entrySet()) {
-            entry.getValue().keySet().removeIf(record -> !record.isStillValid());
-            entry.getValue().keySet().forEach(record -> consumer.accept(entry.getKey(), record));
-        }
-    }
-
-}
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+/** This class handles a cache of DNS results. It links nodes (queries) to a set of resource
+ * records (results). Cached results are only maintained for the duration
+ * of the TTL (time-to-live) returned by the server, and are never returned to the user once
+ * expired.
+ *
+ * <p>The cache may be shared by several concurrent lookups. The set of records cached for a
+ * node is immutable, and is atomically replaced whenever a record is added or expires, so
+ * readers never block and a cache hit does not allocate.</p>
+ *
+ * <p>Record sets are indexed by node in a single hash map. Closest-encloser queries (see
+ * {@link #findClosestEnclosing(String, RecordType)}) look up a name and each of its ancestors
+ * in turn, and queries over a whole zone (see {@link #forEachNodeInZone(String, BiConsumer)}
+ * and {@link #removeZone(String)}), which are only used for administration, scan the cache.</p>
+ *
+ * <p>Expired records are reclaimed by a background sweeper rather than by readers. Every set
+ * of records is indexed by the second at which its first record expires, and once a second
+ * has passed the sweeper removes the expired records of the sets indexed under it, whether
+ * or not they are ever read again. Readers only compare the earliest expiration of a set
+ * against a {@link CachedClock}, and filter out expired records without removing them in
+ * the short time before the sweeper catches up.</p>
+ *
+ * <p>Expired records may be kept for a while longer, as stale data to be served when they
+ * cannot be refreshed (RFC 8767). The length of this stale window is read from the
+ * <code>dnscache.staleSeconds</code> system property, and may be changed with
+ * {@link #setStaleWindow(long)}; it is zero (expired records are discarded) by default. Stale
+ * records are never returned by {@link #getCachedResults(DNSNode)}, only by
+ * {@link #getStaleResults(DNSNode)}.</p>
+ *
+ * <p>The cache may be bounded, either by a maximum number of nodes or by an approximate number
+ * of bytes (see {@link #setMaximumEntries(long)} and {@link #setMaximumWeight(long)}). The
+ * initial bounds are read from the <code>dnscache.maxEntries</code> and
+ * <code>dnscache.maxBytes</code> system properties. When a new node would take the cache over
+ * its bound, the node is only admitted if it has been requested more often recently than the
+ * least frequently used of a sample of the oldest nodes, which is evicted instead. This keeps
+ * names that are looked up only once from flushing popular records out of the cache.</p>
+ *
+ * <p>Hits are counted per node. When refresh-ahead is enabled (see
+ * {@link #setRefreshAhead(Function, double, int)}), a node that keeps being requested close to
+ * the end of its TTL is handed to a refresh listener, which resolves it again in the
+ * background while the current records remain in service.</p>
+ */
+public class DNSCache {
+
+    private static final long UNBOUNDED = Long.MAX_VALUE;
+    private static final int EVICTION_SAMPLE = 8;
+    private static final long AVERAGE_ENTRY_WEIGHT = 256;
+    private static final long SWEEP_INTERVAL = 1000;
+    private static final long STALE_TTL = 30;
+
+    private static final int SNAPSHOT_MAGIC = 0x444E5343; // "DNSC"
+    private static final int SNAPSHOT_VERSION = 1;
+    private static final int SNAPSHOT_END = 0xFF;
+    private static final int ENTRY_RECORDS = 0;
+    private static final int ENTRY_NODATA = 1;
+    private static final int ENTRY_NXDOMAIN = 2;
+    private static final int RESULT_TEXT = 0;
+    private static final int RESULT_ADDRESS = 1;
+
+    private static DNSCache instance = new DNSCache(
+            Long.getLong("dnscache.maxEntries", UNBOUNDED),
+            Long.getLong("dnscache.maxBytes", UNBOUNDED));
+
+    private final ConcurrentMap<DNSNode, RecordSet> cachedResults = new ConcurrentHashMap<>();
+    private final ConcurrentNavigableMap<Long, Queue<Slot>> expirations = new ConcurrentSkipListMap<>();
+
+    private final Queue<Slot> evictionQueue = new ConcurrentLinkedQueue<>();
+    private final ReentrantLock evictionLock = new ReentrantLock();
+    private volatile FrequencySketch sketch;
+    private volatile long maximumEntries;
+    private volatile long maximumWeight;
+    private volatile long staleWindow = Long.getLong("dnscache.staleSeconds", 0) * 1000;
+
+    private final AtomicLong entries = new AtomicLong();
+    private final AtomicLong weight = new AtomicLong();
+    private final AtomicLong queuedSlots = new AtomicLong();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder admissions = new LongAdder();
+    private final LongAdder rejections = new LongAdder();
+    private final LongAdder expirationCount = new LongAdder();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    private volatile Function<DNSNode, CompletableFuture<?>> refreshListener;
+    private volatile double refreshFraction;
+    private volatile int refreshMinimumHits;
+
+    private DNSCache(long maximumEntries, long maximumWeight) {
+        this.maximumEntries = maximumEntries;
+        this.maximumWeight = maximumWeight;
+        resizeSketch();
+
+        ScheduledExecutorService sweeper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "dns-cache-sweeper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        sweeper.scheduleWithFixedDelay(this::removeExpired, SWEEP_INTERVAL, SWEEP_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    /** Singleton retrieval method. Only one instance of the DNS cache can be created. This
+     * method returns the single DNS cache instance.
+     *
+     * @return Instance of a DNS cache.
+     */
+    public static DNSCache getInstance() {
+        return instance;
+    }
+
+    /** Returns a set of resource records already cached for a particular query. If no results
+     * are cached for the specified query, returns an empty set. Expired results are never
+     * returned. This method does not perform the query itself, it only returns previously
+     * cached results. The returned set is immutable, and is not affected by later changes to
+     * the cache. As long as the records cached for the query do not change, and none of them
+     * expires, the same set instance is returned, so callers may detect changes by identity.
+     *
+     * @param node DNS query (host name and record type) to obtain cached results.
+     * @return A potentially empty set of resources associated to the query.
+     */
+    public Set<ResourceRecord> getCachedResults(DNSNode node) {
+        return getCachedResults(node, true, true);
+    }
+
+    /** Like {@link #getCachedResults(DNSNode)}, but a miss is only counted if requested. Used
+     * by callers that resolve the node after a miss, through a lookup that reads the cache
+     * again and counts the miss itself.
+     *
+     * @param node      DNS query (host name and record type) to obtain cached results.
+     * @param countMiss false if a miss must not be counted.
+     * @return A potentially empty set of resources associated to the query.
+     */
+    Set<ResourceRecord> getCachedResults(DNSNode node, boolean countMiss) {
+        return getCachedResults(node, true, countMiss);
+    }
+
+    /** Like {@link #getCachedResults(DNSNode)}, but counted neither as a hit nor as a miss.
+     * Used to read back the records of a node that was just resolved, or to check whether a
+     * node is cached before looking it up.
+     *
+     * @param node DNS query (host name and record type) to obtain cached results.
+     * @return A potentially empty set of resources associated to the query.
+     */
+    Set<ResourceRecord> peekCachedResults(DNSNode node) {
+        return getCachedResults(node, false, false);
+    }
+
+    private Set<ResourceRecord> getCachedResults(DNSNode node, boolean countHit, boolean countMiss) {
+        FrequencySketch currentSketch = sketch;
+        if (currentSketch != null)
+            currentSketch.increment(node);
+
+        RecordSet results = lookup(node);
+        Set<ResourceRecord> valid = results == null ? Collections.emptySet() :
+                results.isStillValid() ? results : results.validRecords();
+        if (valid.isEmpty()) {
+            if (countMiss)
+                misses.increment();
+        } else if (countHit)
+            hits.increment();
+        if (valid != results)
+            return valid;
+
+        results.slot.hits++;
+        Function<DNSNode, CompletableFuture<?>> listener = refreshListener;
+        if (listener != null && !results.isNegative())
+            refreshAhead(results, listener);
+        return results;
+    }
+
+    /** Returns the records cached for a query, including records that have expired but are
+     * still within the stale window (RFC 8767), for use when the query cannot be resolved
+     * again in time. Expired records are returned as copies with a TTL of STALE_TTL seconds,
+     * as the original TTL no longer applies; the copies are not added to the cache.
+     *
+     * @param node DNS query (host name and record type) to obtain cached results.
+     * @return A potentially empty set of resources associated to the query.
+     */
+    public Set<ResourceRecord> getStaleResults(DNSNode node) {
+        RecordSet results = lookup(node);
+        if (results == null)
+            return Collections.emptySet();
+        if (results.isStillValid())
+            return results;
+
+        long oldestExpiration = CachedClock.currentTimeMillis() - staleWindow;
+        Set<ResourceRecord> stale = new HashSet<>();
+        for (ResourceRecord record : results.records)
+            if (record.isStillValid())
+                stale.add(record);
+            else if (record.getExpirationTime() > oldestExpiration)
+                stale.add(record.withTTL(STALE_TTL));
+        return Collections.unmodifiableSet(stale);
+    }
+
+    /** Returns true if any of the records cached for a query has expired, but is still within
+     * the stale window, so {@link #getStaleResults(DNSNode)} returns more than
+     * {@link #getCachedResults(DNSNode)}.
+     *
+     * @param node DNS query (host name and record type).
+     * @return true if stale records are cached for the query, false otherwise.
+     */
+    public boolean hasStaleResults(DNSNode node) {
+        RecordSet results = lookup(node);
+        return results != null && !results.isNegative() && !results.isStillValid() &&
+                results.earliestExpiration > CachedClock.currentTimeMillis() - staleWindow;
+    }
+
+    /** Returns true if a set of records is the one cached for a query, as returned by
+     * {@link #getCachedResults(DNSNode)} while all its records are valid, rather than a copy
+     * or a set built elsewhere. Such a set is replaced by a new one whenever the records of
+     * the query change.
+     *
+     * @param node    DNS query (host name and record type).
+     * @param results A set of records returned for the query.
+     * @return true if the set is the one currently cached for the query.
+     */
+    public boolean isCached(DNSNode node, Set<ResourceRecord> results) {
+        return results instanceof RecordSet && lookup(node) == results;
+    }
+
+    /** Adds a specific resource record to the DNS cache. If the cache already has an equivalent
+     * resource record, the existing record is replaced if the new one expires after the existing
+     * record, otherwise the existing record is maintained. If the record is for a node not yet
+     * in the cache and the cache is full, the record may not be admitted.
+     *
+     * @param record Resource record, possibly obtained from a DNS server, containing the result
+     *               of a DNS query.
+     */
+    public void addResult(ResourceRecord record) {
+
+        if (!record.isStillValid()) return;
+
+        store(record.getNode(), List.of(record));
+    }
+
+    /** Adds the records of a node, such as those of a response, with a single update of the
+     * node. Records are merged as by {@link #addResult(ResourceRecord)}, but a node not yet in
+     * a full cache goes through admission once for all its records, so it is either kept with
+     * all of them or not kept at all.
+     *
+     * @param node    DNS query (host name and record type) the records belong to.
+     * @param records Resource records of the node.
+     * @return The records of the node once merged with those already cached, whether or not
+     *         the node was admitted, so that they can still be returned for the query that
+     *         obtained them. Expired records are left out.
+     */
+    public Set<ResourceRecord> addResults(DNSNode node, Collection<ResourceRecord> records) {
+        List<ResourceRecord> valid = new ArrayList<>(records.size());
+        for (ResourceRecord record : records)
+            if (record.isStillValid())
+                valid.add(record);
+        if (valid.isEmpty())
+            return Collections.emptySet();
+        return validResults(store(node, valid));
+    }
+
+    /** Records that a query has no results (RFC 2308). A name error (NXDOMAIN) means that the
+     * host name does not exist, while an empty answer (NODATA) means that the host name exists
+     * but has no records of the requested type. Until the negative answer expires,
+     * {@link #hasNegativeResult(DNSNode)} returns true for the query. A negative answer is
+     * discarded as soon as a record is added for the same query.
+     *
+     * @param node      DNS query (host name and record type) that has no results.
+     * @param ttl       Number of seconds the negative answer may be cached for.
+     * @param nameError true if the host name does not exist, false if it has no records of
+     *                  the requested type.
+     */
+    public void addNegativeResult(DNSNode node, long ttl, boolean nameError) {
+
+        if (ttl <= 0) return;
+
+        addNegativeResultUntil(node, CachedClock.currentTimeMillis() + ttl * 1000, nameError);
+    }
+
+    /** Returns true if a negative answer that has not expired yet is cached for a query.
+     *
+     * @param node DNS query (host name and record type).
+     * @return true if the query is known to have no results, false otherwise.
+     */
+    public boolean hasNegativeResult(DNSNode node) {
+        RecordSet results = lookup(node);
+        return results != null && results.isNegative() && results.isStillValid();
+    }
+
+    /** Returns true if a name error (NXDOMAIN) that has not expired yet is cached for a query.
+     *
+     * @param node DNS query (host name and record type).
+     * @return true if the host name is known not to exist, false otherwise.
+     */
+    public boolean hasNameError(DNSNode node) {
+        RecordSet results = lookup(node);
+        return results != null && results.nameError && results.isStillValid();
+    }
+
+    /** Perform a specific action for each query and its set of cached records. This action can
+     * be specified using a lambda expression or method name. Expired records are skipped.
+     * Queries are visited in host name order.
+     *
+     * @param consumer Action to be performed for each query and set of records.
+     */
+    public void forEachNode(BiConsumer<DNSNode, Set<ResourceRecord>> consumer) {
+        SortedMap<DNSNode, Set<ResourceRecord>> sorted = new TreeMap<>();
+        for (RecordSet results : cachedResults.values())
+            collectValid(results, sorted);
+        sorted.forEach(consumer);
+    }
+
+    /** Perform a specific action for each query, and its set of cached records, whose host
+     * name is a zone or any name below it. Expired records are skipped. Queries are visited in
+     * host name order.
+     *
+     * @param zone     Name of the zone.
+     * @param consumer Action to be performed for each query and set of records.
+     */
+    public void forEachNodeInZone(String zone, BiConsumer<DNSNode, Set<ResourceRecord>> consumer) {
+        SortedMap<DNSNode, Set<ResourceRecord>> sorted = new TreeMap<>();
+        for (RecordSet results : cachedResults.values())
+            if (DelegationCache.isInZone(results.slot.node.getHostName(), zone))
+                collectValid(results, sorted);
+        sorted.forEach(consumer);
+    }
+
+    /** Perform a specific action for each query and individual record. This action can be
+     * specified using a lambda expression or method name. Expired records are skipped.
+     *
+     * @param consumer Action to be performed for each query and record.
+     */
+    public void forEachRecord(BiConsumer<DNSNode, ResourceRecord> consumer) {
+        for (RecordSet results : cachedResults.values()) {
+            DNSNode node = results.slot.node;
+            validResults(results).forEach(record -> consumer.accept(node, record));
+        }
+    }
+
+    /** Returns the records cached for a given type at the deepest name, among a host name and
+     * its ancestors, that has valid records of that type. For example, the SOA record of the
+     * zone a name belongs to, or the NS records of its closest known zone cut. Negative
+     * answers are skipped. The records are not counted as a cache hit.
+     *
+     * @param hostName Fully qualified domain name.
+     * @param type     Record type to be found.
+     * @return The records of the closest enclosing name, or an empty set if none is cached.
+     */
+    public Set<ResourceRecord> findClosestEnclosing(String hostName, RecordType type) {
+        String name = DNSNode.canonicalName(hostName);
+        while (true) {
+            RecordSet results = cachedResults.get(new DNSNode(name, type));
+            if (results != null && !results.isNegative()) {
+                Set<ResourceRecord> valid = validResults(results);
+                if (!valid.isEmpty())
+                    return valid;
+            }
+            if (name.isEmpty())
+                return Collections.emptySet();
+            name = DNSNode.parentName(name);
+        }
+    }
+
+    /** Removes all the records cached for a zone and every name below it, including negative
+     * answers. Other names are not affected.
+     *
+     * @param zone Name of the zone.
+     * @return Number of nodes removed.
+     */
+    public int removeZone(String zone) {
+        List<Slot> slots = new ArrayList<>();
+        for (RecordSet results : cachedResults.values())
+            if (DelegationCache.isInZone(results.slot.node.getHostName(), zone))
+                slots.add(results.slot);
+        for (Slot slot : slots)
+            remove(slot);
+        return slots.size();
+    }
+
+    /** Writes the records and negative answers held by the cache to a snapshot, from which
+     * they may be loaded again with {@link #loadSnapshot(ByteBuffer)}, e.g. after a restart.
+     * Records are written with their absolute expiration time, so loading a snapshot only
+     * restores what has not expired in the meantime. Stale records are included. The cache is
+     * traversed without blocking lookups or updates, which may or may not be reflected in the
+     * snapshot.
+     *
+     * <p>A snapshot starts with a magic number, a format version and the time it was written,
+     * followed by one entry per node: the length and bytes of the host name, the record type
+     * code, and the kind of entry. A negative answer is followed by its expiration time, and
+     * a set of records by their number and, for each record, its expiration time and either
+     * the raw bytes of its address or its textual result in UTF-8. A host name length of 255,
+     * which no valid name has, ends the snapshot.</p>
+     *
+     * @param out Output the snapshot is written to.
+     * @return Number of nodes written.
+     * @throws IOException If the snapshot could not be written.
+     */
+    public long writeSnapshot(DataOutput out) throws IOException {
+        out.writeInt(SNAPSHOT_MAGIC);
+        out.writeShort(SNAPSHOT_VERSION);
+        out.writeLong(System.currentTimeMillis());
+        long written = 0;
+        for (RecordSet results : cachedResults.values()) {
+            byte[] name = results.slot.node.getHostName().getBytes(StandardCharsets.ISO_8859_1);
+            if (name.length >= SNAPSHOT_END || (results.isNegative() && !results.isStillValid()))
+                continue;
+            writeEntry(out, name, results);
+            written++;
+        }
+        out.writeByte(SNAPSHOT_END);
+        return written;
+    }
+
+    /** Adds the records and negative answers of a snapshot written by
+     * {@link #writeSnapshot(DataOutput)} to the cache. Entries that have expired since the
+     * snapshot was written are skipped, except for records still within the stale window.
+     * Records are merged with those already cached, as if added by
+     * {@link #addResult(ResourceRecord)}, and a bounded cache admits nodes as usual. Records
+     * that do not fit their type are skipped: an A record must hold a 4-byte address, an AAAA
+     * record a 16-byte address, and records of other types a textual result.
+     *
+     * @param in Buffer holding the snapshot, read from its current position.
+     * @return Number of nodes loaded.
+     * @throws IOException If the buffer does not hold a valid snapshot. Entries read before
+     *                     the error are kept.
+     */
+    public long loadSnapshot(ByteBuffer in) throws IOException {
+        try {
+            if (in.getInt() != SNAPSHOT_MAGIC)
+                throw new StreamCorruptedException("Not a DNS cache snapshot");
+            if (in.getShort() != SNAPSHOT_VERSION)
+                throw new StreamCorruptedException("Unsupported DNS cache snapshot version");
+            in.getLong();
+
+            long now = CachedClock.currentTimeMillis();
+            long oldestExpiration = now - staleWindow;
+            long loaded = 0;
+            byte[] buffer = new byte[SNAPSHOT_END];
+            int nameLength;
+            while ((nameLength = in.get() & 0xFF) != SNAPSHOT_END) {
+                in.get(buffer, 0, nameLength);
+                DNSNode node = new DNSNode(new String(buffer, 0, nameLength, StandardCharsets.ISO_8859_1),
+                        RecordType.getByCode(in.getShort() & 0xFFFF));
+                int kind = in.get();
+                if (kind == ENTRY_NODATA || kind == ENTRY_NXDOMAIN) {
+                    long expiration = in.getLong();
+                    if (expiration > now) {
+                        addNegativeResultUntil(node, expiration, kind == ENTRY_NXDOMAIN);
+                        loaded++;
+                    }
+                    continue;
+                } else if (kind != ENTRY_RECORDS)
+                    throw new StreamCorruptedException("Invalid DNS cache snapshot entry");
+
+                int count = in.getShort() & 0xFFFF;
+                List<ResourceRecord> records = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    long expiration = in.getLong();
+                    int result = in.get();
+                    if (result != RESULT_ADDRESS && result != RESULT_TEXT)
+                        throw new StreamCorruptedException("Invalid DNS cache snapshot record");
+                    byte[] data = new byte[in.getShort() & 0xFFFF];
+                    in.get(data);
+                    if (expiration <= oldestExpiration || !isValidResult(node.getType(), result, data.length))
+                        continue;
+                    records.add(result == RESULT_ADDRESS ?
+                            new ResourceRecord(node, expiration, data, null) :
+                            new ResourceRecord(node, expiration, null, new String(data, StandardCharsets.UTF_8)));
+                }
+                if (!records.isEmpty()) {
+                    store(node, records);
+                    loaded++;
+                }
+            }
+            return loaded;
+        } catch (BufferUnderflowException e) {
+            throw new StreamCorruptedException("Truncated DNS cache snapshot");
+        }
+    }
+
+    /** Returns true if a result read from a snapshot fits its record type: a 4-byte address
+     * for A, a 16-byte address for AAAA, and text for any other type.
+     */
+    private static boolean isValidResult(RecordType type, int result, int length) {
+        switch (type) {
+            case A:
+                return result == RESULT_ADDRESS && length == 4;
+            case AAAA:
+                return result == RESULT_ADDRESS && length == 16;
+            default:
+                return result == RESULT_TEXT;
+        }
+    }
+
+    /** Enables refresh-ahead. Once a node has been hit a minimum number of times, the first hit
+     * within the last fraction of the lifetime of its records (e.g., the last 10% of their
+     * TTL) passes the node to a listener, which is expected to resolve it again and add the
+     * new records to the cache. The current records are returned until then. The listener may
+     * decline a node (e.g., if too many refreshes are in progress), in which case it is
+     * offered again on a later hit. Hit counts are reset each time a node is offered. A node
+     * is not offered again while its refresh is in progress; once the refresh is over, whether
+     * it failed, found nothing or left the records as they were, the node may be offered again
+     * on a later hit.
+     *
+     * @param listener    Called with nodes to be refreshed; returns a future completed when the
+     *                    refresh is over, or null to decline. Must not block. Null disables
+     *                    refresh-ahead.
+     * @param fraction    Fraction of the lifetime of the records, between 0 and 1, before the
+     *                    end of which a node may be refreshed.
+     * @param minimumHits Number of hits a node needs to be refreshed.
+     */
+    public void setRefreshAhead(Function<DNSNode, CompletableFuture<?>> listener, double fraction, int minimumHits) {
+        this.refreshFraction = fraction;
+        this.refreshMinimumHits = minimumHits;
+        this.refreshListener = listener;
+    }
+
+    /** Returns the number of hits for a node since it was added to the cache, or since it was
+     * last offered for refresh.
+     *
+     * @param node DNS query (host name and record type).
+     * @return Number of hits, or 0 if the node is not cached.
+     */
+    public int getHitCount(DNSNode node) {
+        RecordSet results = lookup(node);
+        return results == null ? 0 : results.slot.hits;
+    }
+
+    /** Sets how long records are kept after they expire, to be served as stale data if they
+     * cannot be refreshed (RFC 8767). Records that already expired are not affected, and a
+     * shorter window only takes effect as records are next swept.
+     *
+     * @param seconds Length of the stale window, in seconds, or zero to discard records as
+     *                soon as they expire.
+     */
+    public void setStaleWindow(long seconds) {
+        this.staleWindow = seconds * 1000;
+    }
+
+    /** Returns how long records are kept after they expire, in seconds.
+     *
+     * @return Length of the stale window, in seconds.
+     */
+    public long getStaleWindow() {
+        return staleWindow / 1000;
+    }
+
+    /** Sets the maximum number of nodes (queries) kept in the cache. If the cache currently
+     * holds more nodes, the least frequently used ones are evicted.
+     *
+     * @param maximumEntries Maximum number of nodes, or Long.MAX_VALUE for no limit.
+     */
+    public void setMaximumEntries(long maximumEntries) {
+        this.maximumEntries = maximumEntries;
+        resizeSketch();
+        evict(null);
+    }
+
+    /** Sets the approximate maximum amount of memory, in bytes, used by cached nodes and
+     * records. If the cache currently uses more, the least frequently used nodes are evicted.
+     *
+     * @param maximumWeight Maximum number of bytes, or Long.MAX_VALUE for no limit.
+     */
+    public void setMaximumWeight(long maximumWeight) {
+        this.maximumWeight = maximumWeight;
+        resizeSketch();
+        evict(null);
+    }
+
+    public long getMaximumEntries() {
+        return maximumEntries;
+    }
+
+    public long getMaximumWeight() {
+        return maximumWeight;
+    }
+
+    /** Returns the number of nodes currently in the cache.
+     *
+     * @return Number of cached nodes.
+     */
+    public long getEntryCount() {
+        return entries.get();
+    }
+
+    /** Returns the approximate number of bytes used by the nodes currently in the cache.
+     *
+     * @return Estimated size of the cache, in bytes.
+     */
+    public long getWeight() {
+        return weight.get();
+    }
+
+    /** Returns the number of nodes removed from the cache to make room for new ones.
+     *
+     * @return Number of evicted nodes.
+     */
+    public long getEvictionCount() {
+        return evictions.sum();
+    }
+
+    /** Returns the number of new nodes kept in a full cache in place of a less popular one.
+     *
+     * @return Number of admitted nodes.
+     */
+    public long getAdmissionCount() {
+        return admissions.sum();
+    }
+
+    /** Returns the number of new nodes dropped because the cache was full and they were less
+     * popular than the nodes that would have been evicted in their place.
+     *
+     * @return Number of rejected nodes.
+     */
+    public long getRejectionCount() {
+        return rejections.sum();
+    }
+
+    /** Returns the number of reads of {@link #getCachedResults(DNSNode)} that returned records.
+     * Negative answers are not counted, as they are read through
+     * {@link #hasNegativeResult(DNSNode)}.
+     *
+     * @return Number of cache hits.
+     */
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    /** Returns the number of reads of {@link #getCachedResults(DNSNode)} that found no valid
+     * record.
+     *
+     * @return Number of cache misses.
+     */
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    /** Returns the number of nodes removed from the cache because all their records expired.
+     *
+     * @return Number of expired nodes.
+     */
+    public long getExpirationCount() {
+        return expirationCount.sum();
+    }
+
+    /** Returns the records of a set that have not expired, without counting an access.
+     */
+    private static Set<ResourceRecord> validResults(RecordSet results) {
+        return results.isStillValid() ? results : results.validRecords();
+    }
+
+    private static void collectValid(RecordSet results, Map<DNSNode, Set<ResourceRecord>> collected) {
+        Set<ResourceRecord> valid = validResults(results);
+        if (!valid.isEmpty())
+            collected.put(results.slot.node, valid);
+    }
+
+    private static void writeEntry(DataOutput out, byte[] name, RecordSet results) throws IOException {
+        out.writeByte(name.length);
+        out.write(name);
+        out.writeShort(results.slot.node.getType().getCode());
+        if (results.isNegative()) {
+            out.writeByte(results.nameError ? ENTRY_NXDOMAIN : ENTRY_NODATA);
+            out.writeLong(results.earliestExpiration);
+            return;
+        }
+        out.writeByte(ENTRY_RECORDS);
+        out.writeShort(results.records.length);
+        for (ResourceRecord record : results.records) {
+            out.writeLong(record.getExpirationTime());
+            byte[] address = record.getAddressBytes();
+            byte[] data = address != null ? address : record.getTextResult().getBytes(StandardCharsets.UTF_8);
+            out.writeByte(address != null ? RESULT_ADDRESS : RESULT_TEXT);
+            out.writeShort(data.length);
+            out.write(data);
+        }
+    }
+
+    /** Merges a non-empty list of records of the same node into the cache with a single update
+     * of the node, then, if the node is new and the cache is full, decides whether it is kept.
+     * Records are not checked for expiration, so records loaded from a snapshot that are
+     * still within the stale window are kept.
+     *
+     * @return The set built for the node, even if the node was not admitted.
+     */
+    private RecordSet store(DNSNode node, List<ResourceRecord> records) {
+        Slot[] created = new Slot[1];
+        RecordSet[] stored = new RecordSet[1];
+        compute(node, (key, current) -> {
+            RecordSet updated = null;
+            for (ResourceRecord record : records) {
+                // Records of a node share the node's key, rather than each keeping a copy
+                ResourceRecord shared = record.getNode() == key ? record : record.withNode(key);
+                if (updated != null)
+                    updated = updated.with(shared, staleWindow);
+                else if (current != null)
+                    updated = current.with(shared, staleWindow);
+                else {
+                    created[0] = new Slot(key);
+                    updated = new RecordSet(created[0], shared);
+                }
+            }
+            if (current == null) {
+                entries.incrementAndGet();
+                weight.addAndGet(updated.weight);
+                scheduleExpiration(updated);
+            } else {
+                weight.addAndGet(updated.weight - current.weight);
+                if (updated.earliestExpiration != current.earliestExpiration) {
+                    scheduleExpiration(updated);
+                    updated.slot.updated = CachedClock.currentTimeMillis();
+                    updated.slot.refreshing = false;
+                }
+            }
+            stored[0] = updated;
+            return updated;
+        });
+
+        if (created[0] != null && isBounded()) {
+            evictionQueue.offer(created[0]);
+            queuedSlots.incrementAndGet();
+            evict(created[0]);
+        }
+        return stored[0];
+    }
+
+    /** Records a negative answer that expires at a given time.
+     */
+    private void addNegativeResultUntil(DNSNode node, long expiration, boolean nameError) {
+        Slot[] created = new Slot[1];
+        compute(node, (key, current) -> {
+            if (current != null && !current.isNegative() && !current.validRecords().isEmpty())
+                return current;
+            RecordSet updated = new RecordSet(current == null ? new Slot(key) : current.slot, expiration, nameError);
+            if (current == null) {
+                created[0] = updated.slot;
+                entries.incrementAndGet();
+                weight.addAndGet(updated.weight);
+            } else
+                weight.addAndGet(updated.weight - current.weight);
+            scheduleExpiration(updated);
+            return updated;
+        });
+
+        if (created[0] != null && isBounded()) {
+            evictionQueue.offer(created[0]);
+            queuedSlots.incrementAndGet();
+            evict(created[0]);
+        }
+    }
+
+    /** Returns the set cached for a node, or null if there is none.
+     */
+    private RecordSet lookup(DNSNode node) {
+        return cachedResults.get(node);
+    }
+
+    /** Atomically replaces the set cached for a node. The remapping function is called with
+     * the key of the node and its current set (null if there is none), and returns the new
+     * set, or null to remove the node. The key is the node the current set was cached under,
+     * if any, so that the records of a node keep sharing one copy of it.
+     */
+    private void compute(DNSNode node, BiFunction<DNSNode, RecordSet, RecordSet> function) {
+        cachedResults.compute(node, (key, current) ->
+                function.apply(current != null ? current.slot.node : key, current));
+    }
+
+    /** Like {@link #compute(DNSNode, BiFunction)}, but does nothing if no set is cached for
+     * the node.
+     */
+    private void computeIfPresent(DNSNode node, BiFunction<DNSNode, RecordSet, RecordSet> function) {
+        cachedResults.computeIfPresent(node, (key, current) -> function.apply(current.slot.node, current));
+    }
+
+    /** Offers a node to the refresh listener if it has been hit often enough and its records
+     * are in the last fraction of their lifetime. The node is not offered again until the
+     * refresh is over. Updates of the hit count and refresh flag may race, at worst offering a
+     * node twice.
+     */
+    private void refreshAhead(RecordSet results, Function<DNSNode, CompletableFuture<?>> listener) {
+        Slot slot = results.slot;
+        if (slot.refreshing || slot.hits < refreshMinimumHits)
+            return;
+        long lifetime = results.earliestExpiration - slot.updated;
+        long remaining = results.earliestExpiration - CachedClock.currentTimeMillis();
+        if (lifetime <= 0 || remaining > lifetime * refreshFraction)
+            return;
+        slot.refreshing = true;
+        CompletableFuture<?> refresh = listener.apply(slot.node);
+        if (refresh == null) {
+            slot.refreshing = false;
+            return;
+        }
+        slot.hits = 0;
+        // A refresh that failed or brought nothing new would otherwise block later ones
+        refresh.whenComplete((result, error) -> slot.refreshing = false);
+    }
+
+    /** Indexes a set of records under the second (rounded up) at which its first record
+     * expires, or its first stale record leaves the stale window, so the sweeper visits it
+     * once that second has passed.
+     */
+    private void scheduleExpiration(RecordSet results) {
+        long second = (results.nextExpiration(staleWindow) + 999) / 1000;
+        expirations.computeIfAbsent(second, key -> new ConcurrentLinkedQueue<>()).offer(results.slot);
+    }
+
+    /** Body of the background sweeper. Visits every node indexed under a second that has
+     * already passed, and removes its expired records, unless they are still within the stale
+     * window. Nodes that still have records are indexed again under the next expiration.
+     */
+    private void removeExpired() {
+        long now = CachedClock.currentTimeMillis() / 1000;
+        Map.Entry<Long, Queue<Slot>> due;
+        while ((due = expirations.firstEntry()) != null && due.getKey() <= now) {
+            expirations.remove(due.getKey());
+            for (Slot slot : due.getValue())
+                if (!slot.removed)
+                    computeIfPresent(slot.node,
+                            (node, current) -> current.slot == slot ? withoutExpired(current) : current);
+        }
+    }
+
+    /** Remapping function that drops expired records from a node's set, keeping the size of
+     * the cache up to date. Returns null, removing the node, if all its records have expired.
+     */
+    private RecordSet withoutExpired(RecordSet current) {
+        RecordSet updated = current.withoutExpired(staleWindow);
+        if (updated == current && current.isStillValid())
+            return current;
+        if (updated == null) {
+            current.slot.removed = true;
+            entries.decrementAndGet();
+            weight.addAndGet(-current.weight);
+            expirationCount.increment();
+        } else {
+            weight.addAndGet(updated.weight - current.weight);
+            scheduleExpiration(updated);
+        }
+        return updated;
+    }
+
+    private boolean isBounded() {
+        return maximumEntries != UNBOUNDED || maximumWeight != UNBOUNDED;
+    }
+
+    private boolean isOverCapacity() {
+        return entries.get() > maximumEntries || weight.get() > maximumWeight;
+    }
+
+    /** Creates a frequency sketch sized for the current bounds, or drops it if the cache is
+     * unbounded. The eviction queue is rebuilt when the cache becomes bounded.
+     */
+    private void resizeSketch() {
+        evictionLock.lock();
+        try {
+            if (!isBounded()) {
+                sketch = null;
+                evictionQueue.clear();
+                queuedSlots.set(0);
+                return;
+            }
+            long expectedEntries = Math.min(maximumEntries, maximumWeight / AVERAGE_ENTRY_WEIGHT);
+            boolean wasBounded = sketch != null;
+            sketch = new FrequencySketch(expectedEntries);
+            if (!wasBounded)
+                for (RecordSet results : cachedResults.values()) {
+                    evictionQueue.offer(results.slot);
+                    queuedSlots.incrementAndGet();
+                }
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    /** Brings the cache back within its bounds. If a node was just added, it competes with the
+     * least frequently used node in a sample taken from the head of the eviction queue (the
+     * oldest nodes): the less popular of the two is removed. Any further eviction needed
+     * removes sampled nodes only.
+     *
+     * @param candidate Slot of the node that was just added, or null.
+     */
+    private void evict(Slot candidate) {
+        if (!isOverCapacity()) return;
+
+        evictionLock.lock();
+        try {
+            FrequencySketch currentSketch = sketch;
+            while (currentSketch != null && isOverCapacity()) {
+                Slot victim = sampleVictim(currentSketch, candidate);
+                if (victim == null)
+                    break;
+
+                if (candidate != null && !candidate.removed) {
+                    if (currentSketch.frequency(candidate.node) <= currentSketch.frequency(victim.node)) {
+                        evictionQueue.offer(victim);
+                        queuedSlots.incrementAndGet();
+                        remove(candidate);
+                        rejections.increment();
+                        candidate = null;
+                        continue;
+                    }
+                    admissions.increment();
+                    candidate = null;
+                }
+                remove(victim);
+                evictions.increment();
+            }
+
+            // Drop slots of nodes that expired if they make up most of the queue
+            if (queuedSlots.get() > 2 * entries.get() + EVICTION_SAMPLE) {
+                evictionQueue.removeIf(slot -> slot.removed);
+                queuedSlots.set(evictionQueue.size());
+            }
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    /** Takes a sample of live slots from the head of the eviction queue and returns the least
+     * frequently used one. The other slots in the sample are moved to the tail of the queue.
+     * The candidate being admitted is never chosen. Must be called holding the eviction lock.
+     */
+    private Slot sampleVictim(FrequencySketch currentSketch, Slot candidate) {
+        List<Slot> sample = new ArrayList<>(EVICTION_SAMPLE);
+        boolean candidateSeen = false;
+        Slot slot;
+        while (sample.size() < EVICTION_SAMPLE && (slot = evictionQueue.poll()) != null) {
+            if (slot.removed) {
+                queuedSlots.decrementAndGet();
+                continue;
+            }
+            if (slot == candidate) {
+                evictionQueue.offer(slot);
+                if (candidateSeen)
+                    break;
+                candidateSeen = true;
+                continue;
+            }
+            sample.add(slot);
+        }
+
+        Slot victim = null;
+        int victimFrequency = Integer.MAX_VALUE;
+        for (Slot sampled : sample) {
+            int frequency = currentSketch.frequency(sampled.node);
+            if (frequency < victimFrequency) {
+                victim = sampled;
+                victimFrequency = frequency;
+            }
+        }
+        for (Slot sampled : sample)
+            if (sampled != victim)
+                evictionQueue.offer(sampled);
+        if (victim != null)
+            queuedSlots.decrementAndGet();
+        return victim;
+    }
+
+    private void remove(Slot slot) {
+        computeIfPresent(slot.node, (node, current) -> {
+            if (current.slot != slot)
+                return current;
+            slot.removed = true;
+            entries.decrementAndGet();
+            weight.addAndGet(-current.weight);
+            return null;
+        });
+    }
+
+    /** Position of a node in the eviction queue. A slot is shared by all the record sets that
+     * successively hold the records of a node, until the node is removed from the cache. It
+     * also counts the hits for the node, and remembers when its records were last renewed.
+     */
+    private static final class Slot {
+
+        private final DNSNode node;
+        private volatile boolean removed = false;
+        private volatile int hits = 0;
+        private volatile long updated = CachedClock.currentTimeMillis();
+        private volatile boolean refreshing = false;
+
+        private Slot(DNSNode node) {
+            this.node = node;
+        }
+    }
+
+    /** Immutable set of records cached for a single node. Along with the records themselves, it
+     * keeps the time at which the first of them expires, so checking whether all the records
+     * are still valid takes constant time, and the approximate memory used by the records.
+     * A negative answer is represented by a set with no records that expires with the answer.
+     *
+     * <p>The set is backed by a plain array, and is itself what {@link #getCachedResults}
+     * returns: nodes rarely have more than a few records, so a linear search is as fast as
+     * hashing, and no hash table is kept per node.</p>
+     */
+    private static final class RecordSet extends AbstractSet<ResourceRecord> {
+
+        private static final int NODE_OVERHEAD = 200;
+        private static final int RECORD_OVERHEAD = 50;
+
+        private final Slot slot;
+        private final ResourceRecord[] records;
+        private final long earliestExpiration;
+        private final int weight;
+        private final boolean nameError;
+
+        private RecordSet(Slot slot, ResourceRecord record) {
+            this(slot, new ResourceRecord[] { record });
+        }
+
+        private RecordSet(Slot slot, long expiration, boolean nameError) {
+            this.slot = slot;
+            this.records = new ResourceRecord[0];
+            this.earliestExpiration = expiration;
+            this.weight = NODE_OVERHEAD + slot.node.getHostName().length();
+            this.nameError = nameError;
+        }
+
+        private RecordSet(Slot slot, ResourceRecord[] records) {
+            this.slot = slot;
+            this.records = records;
+            long earliest = Long.MAX_VALUE;
+            int size = NODE_OVERHEAD + slot.node.getHostName().length();
+            for (ResourceRecord record : records) {
+                earliest = Math.min(earliest, record.getExpirationTime());
+                size += RECORD_OVERHEAD + record.getResultSize();
+            }
+            this.earliestExpiration = earliest;
+            this.weight = size;
+            this.nameError = false;
+        }
+
+        @Override
+        public Iterator<ResourceRecord> iterator() {
+            return new Iterator<ResourceRecord>() {
+                private int next = 0;
+
+                @Override
+                public boolean hasNext() {
+                    return next < records.length;
+                }
+
+                @Override
+                public ResourceRecord next() {
+                    if (next >= records.length)
+                        throw new NoSuchElementException();
+                    return records[next++];
+                }
+            };
+        }
+
+        @Override
+        public int size() {
+            return records.length;
+        }
+
+        private boolean isStillValid() {
+            return CachedClock.currentTimeMillis() < earliestExpiration;
+        }
+
+        private boolean isNegative() {
+            return records.length == 0;
+        }
+
+        /** Returns the records in this set that have not expired yet, without changing the set.
+         */
+        private Set<ResourceRecord> validRecords() {
+            Set<ResourceRecord> valid = new HashSet<>();
+            for (ResourceRecord record : records)
+                if (record.isStillValid())
+                    valid.add(record);
+            return Collections.unmodifiableSet(valid);
+        }
+
+        /** Returns the time at which the sweeper should next visit this set: the expiration of
+         * its first valid record, or the end of the stale window of its first expired record,
+         * whichever comes first.
+         */
+        private long nextExpiration(long staleWindow) {
+            if (isStillValid() || isNegative())
+                return earliestExpiration;
+            long now = CachedClock.currentTimeMillis();
+            long next = Long.MAX_VALUE;
+            for (ResourceRecord record : records) {
+                long expiration = record.getExpirationTime();
+                next = Math.min(next, expiration > now ? expiration : expiration + staleWindow);
+            }
+            return next;
+        }
+
+        /** Returns a set with the same records as this one, minus the ones that expired longer
+         * than the stale window ago, or null if there are none left. Negative answers are
+         * never kept once expired.
+         */
+        private RecordSet withoutExpired(long staleWindow) {
+            if (isStillValid())
+                return this;
+            if (isNegative())
+                return null;
+
+            long oldestExpiration = CachedClock.currentTimeMillis() - staleWindow;
+            List<ResourceRecord> kept = new ArrayList<>(records.length);
+            for (ResourceRecord record : records)
+                if (record.getExpirationTime() > oldestExpiration)
+                    kept.add(record);
+            if (kept.size() == records.length)
+                return this;
+            return kept.isEmpty() ? null : new RecordSet(slot, kept.toArray(new ResourceRecord[0]));
+        }
+
+        /** Returns a set that includes a new record. An equivalent record already in the set is
+         * only replaced if the new one expires after it. If the new record is still valid, the
+         * records that have expired are discarded, as a refreshed answer supersedes them;
+         * otherwise only those that expired longer than the stale window ago are, and more
+         * recently expired ones are kept, to be served as stale data.
+         */
+        private RecordSet with(ResourceRecord record, long staleWindow) {
+            long now = CachedClock.currentTimeMillis();
+            long oldestExpiration = record.getExpirationTime() > now ? now : now - staleWindow;
+            List<ResourceRecord> merged = new ArrayList<>(records.length + 1);
+            boolean found = false;
+            for (ResourceRecord existing : records) {
+                if (existing.equals(record)) {
+                    found = true;
+                    if (!existing.expiresBefore(record)) {
+                        if (isStillValid()) return this;
+                        merged.add(existing);
+                        continue;
+                    }
+                    merged.add(record);
+                } else if (existing.getExpirationTime() > oldestExpiration)
+                    merged.add(existing);
+            }
+            if (!found)
+                merged.add(record);
+            return new RecordSet(slot, merged.toArray(new ResourceRecord[0]));
+        }
+    }
+}
@@ -0,0 +1,14 @@
+import java.io.IOException;
+
+/** Thrown when a DNS message is malformed: a field extends past the end of the message, a
+ * name is too long or its compression pointers form a loop, or a record's data does not
+ * match its type.
+ */
+public class DNSFormatException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    public DNSFormatException(String message) {
+        super(message);
+    }
+}
@@ -1,523 +1,603 @@
-import java.io.*;
-import java.net.*;
-import java.nio.charset.StandardCharsets;
-import java.util.*;
-
-public class DNSLookupService {
-
-    private static final int DEFAULT_DNS_PORT = 53;
-    private static final int MAX_INDIRECTION_LEVEL = 10;
-
-    private static InetAddress rootServer;
-    private static boolean verboseTracing = false;
-    private static DatagramSocket socket;
-    private static int mainPointer = 0;
-    private static int curIndLvl = 0;
-
-    private static DNSCache cache = DNSCache.getInstance();
-
-    private static Random random = new Random();
-
-    /**
-     * Main function, called when program is first invoked.
-     *
-     * @param args list of arguments specified in the command line.
-     */
-    public static void main(String[] args) {
-
-        if (args.length != 1) {
-            System.err.println("Invalid call. Usage:");
-            System.err.println("\tjava -jar DNSLookupService.jar rootServer");
-            System.err.println("where rootServer is the IP address (in dotted form) of the root DNS server to start the search at.");
-            System.exit(1);
-        }
-
-        try {
-            rootServer = InetAddress.getByName(args[0]);
-            System.out.println("Root DNS server is: " + rootServer.getHostAddress());
-        } catch (UnknownHostException e) {
-            System.err.println("Invalid root server (" + e.getMessage() + ").");
-            System.exit(1);
-        }
-
-        try {
-            socket = new DatagramSocket();
-            socket.setSoTimeout(5000);
-        } catch (SocketException ex) {
-            ex.printStackTrace();
-            System.exit(1);
-        }
-
-        Scanner in = new Scanner(System.in);
-        Console console = System.console();
-        do {
-            // Use console if one is available, or standard input if not.
-            String commandLine;
-            if (console != null) {
-                System.out.print("DNSLOOKUP> ");
-                commandLine = console.readLine();
-            } else
-                try {
-                    commandLine = in.nextLine();
-                } catch (NoSuchElementException ex) {
-                    break;
-                }
-            // If reached end-of-file, leave
-            if (commandLine == null) break;
-
-            // Ignore leading/trailing spaces and anything beyond a comment character
-            commandLine = commandLine.trim().split("#", 2)[0];
-
-            // If no command shown, skip to next command
-            if (commandLine.trim().isEmpty()) continue;
-
-            String[] commandArgs = commandLine.split(" ");
-
-            if (commandArgs[0].equalsIgnoreCase("quit") ||
-                    commandArgs[0].equalsIgnoreCase("exit"))
-                break;
-            else if (commandArgs[0].equalsIgnoreCase("server")) {
-                // SERVER: Change root nameserver
-                if (commandArgs.length == 2) {
-                    try {
-                        rootServer = InetAddress.getByName(commandArgs[1]);
-                        System.out.println("Root DNS server is now: " + rootServer.getHostAddress());
-                    } catch (UnknownHostException e) {
-                        System.out.println("Invalid root server (" + e.getMessage() + ").");
-                        continue;
-                    }
-                } else {
-                    System.out.println("Invalid call. Format:\n\tserver IP");
-                    continue;
-                }
-            } else if (commandArgs[0].equalsIgnoreCase("trace")) {
-                // TRACE: Turn trace setting on or off
-                if (commandArgs.length == 2) {
-                    if (commandArgs[1].equalsIgnoreCase("on"))
-                        verboseTracing = true;
-                    else if (commandArgs[1].equalsIgnoreCase("off"))
-                        verboseTracing = false;
-                    else {
-                        System.err.println("Invalid call. Format:\n\ttrace on|off");
-                        continue;
-                    }
-                    System.out.println("Verbose tracing is now: " + (verboseTracing ? "ON" : "OFF"));
-                } else {
-                    System.err.println("Invalid call. Format:\n\ttrace on|off");
-                    continue;
-                }
-            } else if (commandArgs[0].equalsIgnoreCase("lookup") ||
-                    commandArgs[0].equalsIgnoreCase("l")) {
-                // LOOKUP: Find and print all results associated to a name.
-                RecordType type;
-                if (commandArgs.length == 2)
-                    type = RecordType.A;
-                else if (commandArgs.length == 3)
-                    try {
-                        type = RecordType.valueOf(commandArgs[2].toUpperCase());
-                    } catch (IllegalArgumentException ex) {
-                        System.err.println("Invalid query type. Must be one of:\n\tA, AAAA, NS, MX, CNAME");
-                        continue;
-                    }
-                else {
-                    System.err.println("Invalid call. Format:\n\tlookup hostName [type]");
-                    continue;
-                }
-                findAndPrintResults(commandArgs[1], type);
-            } else if (commandArgs[0].equalsIgnoreCase("dump")) {
-                // DUMP: Print all results still cached
-                cache.forEachNode(DNSLookupService::printResults);
-            } else {
-                System.err.println("Invalid command. Valid commands are:");
-                System.err.println("\tlookup fqdn [type]");
-                System.err.println("\ttrace on|off");
-                System.err.println("\tserver IP");
-                System.err.println("\tdump");
-                System.err.println("\tquit");
-                continue;
-            }
-
-        } while (true);
-
-        socket.close();
-        System.out.println("Goodbye!");
-    }
-
-    /**
-     * Finds all results for a host name and type and prints them on the standard output.
-     *
-     * @param hostName Fully qualified domain name of the host being searched.
-     * @param type     Record type for search.
-     */
-    private static void findAndPrintResults(String hostName, RecordType type) {
-
-        DNSNode node = new DNSNode(hostName, type);
-        printResults(node, getResults(node, 0));
-    }
-
-    /**
-     * Finds all the result for a specific node.
-     *
-     * @param node             Host and record type to be used for search.
-     * @param indirectionLevel Control to limit the number of recursive calls due to CNAME redirection.
-     *                         The initial call should be made with 0 (zero), while recursive calls for
-     *                         regarding CNAME results should increment this value by 1. Once this value
-     *                         reaches MAX_INDIRECTION_LEVEL, the function prints an error message and
-     *                         returns an empty set.
-     * @return A set of resource records corresponding to the specific query requested.
-     */
-    private static Set<ResourceRecord> getResults(DNSNode node, int indirectionLevel) {
-
-        if (indirectionLevel > MAX_INDIRECTION_LEVEL) {
-            System.err.println("Maximum number of indirection levels reached.");
-            return Collections.emptySet();
-        }
-
-        // TODO To be completed by the student
-        // reset the global variable curIndLvl if its a fresh search, it wont change otherwise
-        curIndLvl = indirectionLevel;
-
-        // check cache for record, if not found commence query
-        if (cache.getCachedResults(node).isEmpty()) {
-            retrieveResultsFromServer(node, rootServer);
-        }
-
-        return cache.getCachedResults(node);
-    }
-
-    /**
-     * Retrieves DNS results from a specified DNS server. Queries are sent in iterative mode,
-     * and the query is repeated with a new server if the provided one is non-authoritative.
-     * Results are stored in the cache.
-     *
-     * @param node   Host name and record type to be used for the query.
-     * @param server Address of the server to be used for the query.
-     */
-    private static void retrieveResultsFromServer(DNSNode node, InetAddress server) {
-        // TODO To be completed by the student
-        if (curIndLvl > MAX_INDIRECTION_LEVEL) {
-            return;
-        }
-        // Make a ByteArrayOutputStream to construct the DNSQuery in
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        DataOutputStream dos = new DataOutputStream(baos);
-
-        int Transaction_ID = random.nextInt(65536);
-        try {
-            // Transaction ID
-            dos.writeShort(Transaction_ID);
-            // Flags (always standard query)
-            dos.writeShort(0x0000);
-            // Questions (always 1 question)
-            dos.writeShort(0x0001);
-            // Answer RRs (always 0)
-            dos.writeShort(0x0000);
-            // Authority RRs (always 0)
-            dos.writeShort(0x0000);
-            // Additional RRs (always 0)
-            dos.writeShort(0x0000);
-
-            // Question
-            // QNAME
-            String[] labels = node.getHostName().split("[.]");
-            for (String label : labels) {
-                byte[] labelBytes = label.getBytes(StandardCharsets.UTF_8);
-                dos.writeByte(labelBytes.length);
-                dos.write(labelBytes);
-            }
-            // Terminate QNAME
-            dos.writeByte(0x00);
-            // QTYPE
-            dos.writeShort(node.getType().getCode());
-            // QCLASS (always IN, always 1)
-            dos.writeShort(0x0001);
-        } catch (IOException e) {
-            e.printStackTrace();
-            System.exit(1);
-        }
-
-        // Put the DNSQuery (constructed in the ByteArrayOutputStream) into a byte array to be able to send it
-        byte[] DNSQuery = baos.toByteArray();
-
-        // Sending DNS Request using UDP
-        try {
-            socket.setSoTimeout(5000);
-            DatagramPacket DNSQueryPkt = new DatagramPacket(DNSQuery, DNSQuery.length, server, DEFAULT_DNS_PORT);
-            socket.send(DNSQueryPkt);
-        } catch (SocketException e) {
-            return;
-        } catch (IOException e) {
-            e.printStackTrace();
-            System.exit(1);
-        }
-
-        if (verboseTracing) {
-            System.out.println("\n");
-            System.out.printf("%-12s %d %s  %s %s %s\n", "Query ID", Transaction_ID, node.getHostName(), node.getType(), "-->", server.getHostAddress());
-        }
-
-        // Get response from DNS server and put it into a byte array
-        byte[] DNSResponse = new byte[1024];
-        try {
-            DatagramPacket DNSResponsePkt = new DatagramPacket(DNSResponse, DNSResponse.length);
-            socket.receive(DNSResponsePkt);
-        } catch (SocketTimeoutException e) {
-            return;
-        } catch (IOException e) {
-            e.printStackTrace();
-            System.exit(1);
-        }
-
-        // Reset the global pointer before starting reading the message
-        mainPointer = 12;
-
-        // Read the DNSResponsePkt
-        // Read the Header
-        int RCODE = 0, Authoritative = 0, Questions, AnswerRRs, AuthorityRRs, AdditionalRRs;
-        Transaction_ID = (((DNSResponse[0] & 0xFF) << 8) + (DNSResponse[1] & 0xFF));
-        Authoritative = (DNSResponse[2] & 0x04) >>> 2;
-        RCODE = (DNSResponse[3] & 0x0F);
-        Questions = (((DNSResponse[4] & 0xFF) << 8) + (DNSResponse[5] & 0xFF)); // Always 1
-        AnswerRRs = (((DNSResponse[6] & 0xFF) << 8) + (DNSResponse[7] & 0xFF));
-        AuthorityRRs = (((DNSResponse[8] & 0xFF) << 8) + (DNSResponse[9] & 0xFF));
-        AdditionalRRs = (((DNSResponse[10] & 0xFF) << 8) + (DNSResponse[11] & 0xFF));
-
-        if (verboseTracing) {
-            System.out.printf("%-12s %d %s %s\n", "Response ID:", Transaction_ID, "Authoritative =", (Authoritative == 1 ? "true" : "false"));
-        }
-
-        // Read the Queries (always 1)
-        for (int i = 0; i < Questions; i++) {
-            StringBuilder QNAME;
-            int QTYPE, QCLASS, pointer = mainPointer;
-
-            QNAME = readName(DNSResponse, pointer, true);
-            QTYPE = (((DNSResponse[mainPointer] & 0xFF) << 8) + (DNSResponse[mainPointer + 1] & 0xFF));
-            mainPointer = mainPointer + 2;
-            QCLASS = (((DNSResponse[mainPointer] & 0xFF) << 8) + (DNSResponse[mainPointer + 1] & 0xFF));
-            mainPointer = mainPointer + 2;
-        }
-
-        // Read the Answers
-        if (verboseTracing) {
-            System.out.println("  Answers (" + AnswerRRs + ")");
-        }
-        String[] canonicalName = new String[AnswerRRs];
-        for (int i = 0; i < AnswerRRs; i++) {
-            ResourceRecord record;
-            record = readRecord(DNSResponse);
-            verbosePrintResourceRecord(record, record.getType().getCode());
-
-            if (record.getType().getCode() == 5) {
-                canonicalName[i] = record.getTextResult();
-            } else {
-                canonicalName[i] = null;
-            }
-
-            cache.addResult(record);
-        }
-
-        // Read the Authoritative nameservers
-        if (verboseTracing) {
-            System.out.println("  Nameservers (" + AuthorityRRs + ")");
-        }
-        String[] nameServers = new String[AuthorityRRs];
-        for (int i = 0; i < AuthorityRRs; i++) {
-            ResourceRecord record;
-            record = readRecord(DNSResponse);
-            verbosePrintResourceRecord(record, record.getType().getCode());
-
-            if (record.getType().getCode() == 2) {
-                nameServers[i] = record.getTextResult();
-            } else {
-                nameServers[i] = null;
-            }
-
-            cache.addResult(record);
-        }
-
-        // Read the Additional records
-        if (verboseTracing) {
-            System.out.println("  Additional Information (" + AdditionalRRs + ")");
-        }
-        for (int i = 0; i < AdditionalRRs; i++) {
-            ResourceRecord record;
-            record = readRecord(DNSResponse);
-            verbosePrintResourceRecord(record, record.getType().getCode());
-
-            cache.addResult(record);
-        }
-
-        // If answer not found (and name servers are returned) query the returned name servers
-        if ((AnswerRRs == 0) && (AuthorityRRs > 0) && (RCODE == 0)) {
-            DNSNode temp; Set<ResourceRecord> buffer; ResourceRecord[] bufferarray;
-            for (int i = 0; i < AuthorityRRs; i++) {
-                if (nameServers[i] != null){
-                    buffer = getResults(new DNSNode(nameServers[i], RecordType.A), curIndLvl);
-                    if (buffer.isEmpty()) {
-                        buffer = getResults(new DNSNode(nameServers[i], RecordType.AAAA), curIndLvl);
-                    }
-                    if (buffer.isEmpty()) {
-                        continue;
-                    }
-                    bufferarray = buffer.toArray(new ResourceRecord[0]);
-                    retrieveResultsFromServer(node, bufferarray[0].getInetResult());
-                    if (!cache.getCachedResults(node).isEmpty()) {
-                        break;
-                    }
-                }
-            }
-        }
-
-        // If returned answer is a CNAME, repeat the whole query for CNAME
-        for (int i = 0; (i < AnswerRRs) && (RCODE == 0); i++) {
-            if (canonicalName[i] != null) {
-                if (curIndLvl > MAX_INDIRECTION_LEVEL) {
-                    break;
-                }
-                curIndLvl++;
-                DNSNode CNnode = new DNSNode(canonicalName[i], node.getType());
-                Set<ResourceRecord> CRecords = getResults(CNnode, curIndLvl);
-                if (!CRecords.isEmpty()) {
-                    for (ResourceRecord record: CRecords) {
-                        cache.addResult(new ResourceRecord(node.getHostName(), node.getType(), record.getTTL(), record.getTextResult()));
-                    }
-                    break;
-                }
-            }
-        }
-    }
-
-    /**
-     * Reads a name contained in the DNSResponse message.
-     *
-     * @param DNSResponse   The byte array containing the DNSResponse message.
-     * @param pointer   int value telling the location to read from from the DNSResponse array.
-     * @param incMain   boolean value telling whether we are to increment the global pointer
-     *                  depending on if we have been incurred a pointer while reading the name.
-     * @return  The name read in the StringBuilder object.
-     */
-    private static StringBuilder readName(byte [] DNSResponse, int pointer, boolean incMain) {
-        StringBuilder name = new StringBuilder();
-
-        while (true) {
-            if ((DNSResponse[pointer] & 0xFF) >= 192) {
-                int goTo = ((DNSResponse[pointer] & 0x3F) << 8) + (DNSResponse[pointer + 1] & 0xFF);
-                if (incMain) { mainPointer = mainPointer + 2; }
-                return name.append(readName(DNSResponse, goTo, false));
-            } else if ((DNSResponse[pointer] & 0xFF) == 0){
-                if (incMain) { mainPointer++; }
-                break;
-            } else {
-                int labelLength = (DNSResponse[pointer++] & 0xFF);
-                if (incMain) {
-                    mainPointer++;
-                }
-                for (int i = 0; i < labelLength; i++) {
-                    name.append((char) (DNSResponse[pointer++] & 0xFF));
-                    if (incMain) {
-                        mainPointer++;
-                    }
-                }
-                if ((DNSResponse[pointer] & 0xFF) != 0) { name.append("."); }
-            }
-        }
-
-        return name;
-    }
-
-    /**
-     * Reads a Resourse Record contained in a DNSResponse message.
-     *
-     * @param DNSResponse   The byte array containing the DNSResponse message.
-     * @return  The Record which was read.
-     */
-    private static ResourceRecord readRecord(byte [] DNSResponse) {
-        ResourceRecord record; String hostName; RecordType type; long ttl;
-        int RCLASS; int dataLength;
-
-        StringBuilder name; int pointer = mainPointer;
-        name = readName(DNSResponse, pointer, true);
-        hostName = name.toString();
-
-        type = RecordType.getByCode((((DNSResponse[mainPointer] & 0xFF) << 8) + (DNSResponse[mainPointer + 1] & 0xFF)));
-        mainPointer = mainPointer + 2;
-
-        RCLASS = ((DNSResponse[mainPointer] & 0xFF) << 8) + (DNSResponse[mainPointer + 1] & 0xFF);
-        mainPointer = mainPointer + 2;
-
-        ttl = ((DNSResponse[mainPointer] & 0xFF) << 24) + ((DNSResponse[mainPointer + 1] & 0xFF) << 16) + ((DNSResponse[mainPointer + 2] & 0xFF) << 8) + (DNSResponse[mainPointer + 3] & 0xFF);
-        mainPointer = mainPointer + 4;
-
-        dataLength = ((DNSResponse[mainPointer] & 0xFF) << 8) + (DNSResponse[mainPointer + 1] & 0xFF);
-        mainPointer = mainPointer + 2;
-
-        StringBuilder data = new StringBuilder();
-        if (type.getCode() == 1) {
-            for (int i = 0; i < 4; i++) {
-                data.append(DNSResponse[mainPointer] & 0xFF);
-                mainPointer++;
-                if (i != 3) { data.append("."); }
-            }
-        } else if (type.getCode() == 28) {
-            for (int i = 0; i < 8; i++) {
-                data.append(Integer.toHexString(((DNSResponse[mainPointer] & 0xFF) << 8) + (DNSResponse[mainPointer + 1] & 0xFF)));
-                mainPointer = mainPointer + 2;
-                if (i != 7) { data.append(":"); }
-            }
-        } else if (type.getCode() == 2 || type.getCode() == 5) {
-            pointer = mainPointer;
-            data = readName(DNSResponse, pointer, true);
-        } else if (type.getCode() == 15) {
-            data.append(((DNSResponse[mainPointer] & 0xFF) << 8) + (DNSResponse[mainPointer + 1] & 0xFF));
-            mainPointer = mainPointer + 2;
-            data.append(" ");
-            pointer = mainPointer;
-            data.append(readName(DNSResponse, pointer, true));
-        } else {
-            mainPointer = mainPointer + dataLength;
-        }
-
-        if (type.getCode() == 1 || type.getCode() == 28) {
-            try {
-                record = new ResourceRecord(hostName, type, ttl, InetAddress.getByName(data.toString()));
-                return record;
-            } catch (UnknownHostException e) {
-                e.printStackTrace();
-                System.exit(1);
-            }
-        }
-        record = new ResourceRecord(hostName, type, ttl, data.toString());
-        return record;
-    }
-
-    /**
-     * Prints a Resource Record, for use with verbose tracing.
-     *
-     * @param record    The resource record being printed.
-     * @param rtype The type of the record being preinted
-     */
-    private static void verbosePrintResourceRecord(ResourceRecord record, int rtype) {
-        if (verboseTracing)
-            System.out.format("       %-30s %-10d %-4s %s\n", record.getHostName(),
-                    record.getTTL(),
-                    record.getType() == RecordType.OTHER ? rtype : record.getType(),
-                    record.getTextResult());
-    }
-
-    /**
-     * Prints the result of a DNS query.
-     *
-     * @param node    Host name and record type used for the query.
-     * @param results Set of results to be printed for the node.
-     */
-    private static void printResults(DNSNode node, Set<ResourceRecord> results) {
-        if (results.isEmpty())
-            System.out.printf("%-30s %-5s %-8d %s\n", node.getHostName(),
-                    node.getType(), -1, "0.0.0.0");
-        for (ResourceRecord record : results) {
-            System.out.printf("%-30s %-5s %-8d %s\n", node.getHostName(),
-                    node.getType(), record.getTTL(), record.getTextResult());
-        }
-    }
-}
+import java.io.*;
+import java.net.*;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+public class DNSLookupService {
+
+    private static final int DEFAULT_SERVER_WORKERS = 64;
+    private static final int DEFAULT_BATCH_CONCURRENCY = 64;
+    private static final int MAX_CONCURRENT_PREFETCHES = 2;
+    private static final double PREFETCH_FRACTION = 0.1;
+    private static final int PREFETCH_MINIMUM_HITS = 3;
+    private static final long DEFAULT_SNAPSHOT_INTERVAL = 300;
+
+    private static DNSCache cache = DNSCache.getInstance();
+
+    private static Resolver resolver;
+    private static UdpTransport transport;
+    private static TcpTransport tcpTransport;
+    private static DNSServer server;
+    private static Prefetcher prefetcher;
+    private static CacheSnapshot snapshot;
+    private static StatisticsEndpoint statistics;
+
+    /**
+     * Main function, called when program is first invoked.
+     *
+     * @param args list of arguments specified in the command line.
+     */
+    public static void main(String[] args) {
+
+        if (args.length != 1 && args.length != 2) {
+            System.err.println("Invalid call. Usage:");
+            System.err.println("\tjava -jar DNSLookupService.jar rootServer [port]");
+            System.err.println("where rootServer is the IP address (in dotted form) of the root DNS server to start the search at,");
+            System.err.println("and port is the UDP and TCP port to answer DNS queries on, if the resolver should also act as a server.");
+            System.exit(1);
+        }
+
+        try {
+            transport = new UdpTransport();
+            tcpTransport = new TcpTransport();
+        } catch (IOException ex) {
+            ex.printStackTrace();
+            System.exit(1);
+        }
+
+        try {
+            InetAddress rootServer = InetAddress.getByName(args[0]);
+            resolver = new Resolver(rootServer, cache, transport, tcpTransport);
+            prefetcher = new Prefetcher(resolver, MAX_CONCURRENT_PREFETCHES);
+            System.out.println("Root DNS server is: " + rootServer.getHostAddress());
+        } catch (UnknownHostException e) {
+            System.err.println("Invalid root server (" + e.getMessage() + ").");
+            System.exit(1);
+        }
+
+        // Forwarding mode: queries are sent to upstream recursive resolvers instead of the root
+        String forwarders = System.getProperty("resolver.forwarders");
+        if (forwarders != null) {
+            try {
+                setForwarders(forwarders, ForwarderPool.Policy.valueOf(
+                        System.getProperty("resolver.forwardPolicy", "rtt").toUpperCase()));
+            } catch (IllegalArgumentException | UnknownHostException e) {
+                System.err.println("Invalid forwarders (" + e.getMessage() + ").");
+                System.exit(1);
+            }
+        }
+
+        // Warm restarts: the cache is loaded from its last snapshot, and saved again periodically
+        // and on exit
+        String snapshotFile = System.getProperty("dnscache.snapshot");
+        if (snapshotFile != null)
+            loadSnapshot(Paths.get(snapshotFile), Long.getLong("dnscache.snapshotInterval", DEFAULT_SNAPSHOT_INTERVAL));
+
+        if (args.length == 2) {
+            try {
+                int port = Integer.parseInt(args[1]);
+                server = new DNSServer(resolver, new InetSocketAddress(port), DEFAULT_SERVER_WORKERS);
+                System.out.println("Listening for DNS queries on UDP and TCP port " + server.getLocalAddress().getPort());
+                // Popular names are refreshed before they expire, so clients rarely wait for them
+                setPrefetching(true);
+            } catch (NumberFormatException | IOException e) {
+                System.err.println("Invalid port (" + e.getMessage() + ").");
+                System.exit(1);
+            }
+        }
+
+        // Statistics are always available with "stats json", and also over HTTP if a port is given
+        statistics = new StatisticsEndpoint(resolver, tcpTransport, prefetcher, server);
+        Integer statsPort = Integer.getInteger("resolver.statsPort");
+        if (statsPort != null) {
+            try {
+                InetSocketAddress address = statistics.start(new InetSocketAddress(InetAddress.getLoopbackAddress(), statsPort));
+                System.out.println("Serving statistics on http://" + address.getHostString() + ":" + address.getPort() + "/stats");
+            } catch (IOException | IllegalArgumentException e) {
+                System.err.println("Invalid statistics port (" + e.getMessage() + ").");
+                System.exit(1);
+            }
+        }
+
+        Scanner in = new Scanner(System.in);
+        Console console = System.console();
+        boolean endOfInput = false;
+        do {
+            // Use console if one is available, or standard input if not.
+            String commandLine;
+            if (console != null) {
+                System.out.print("DNSLOOKUP> ");
+                commandLine = console.readLine();
+            } else
+                try {
+                    commandLine = in.nextLine();
+                } catch (NoSuchElementException ex) {
+                    endOfInput = true;
+                    break;
+                }
+            // If reached end-of-file, leave
+            if (commandLine == null) {
+                endOfInput = true;
+                break;
+            }
+
+            // Ignore leading/trailing spaces and anything beyond a comment character
+            commandLine = commandLine.trim().split("#", 2)[0];
+
+            // If no command shown, skip to next command
+            if (commandLine.trim().isEmpty()) continue;
+
+            String[] commandArgs = commandLine.split(" ");
+
+            if (commandArgs[0].equalsIgnoreCase("quit") ||
+                    commandArgs[0].equalsIgnoreCase("exit"))
+                break;
+            else if (commandArgs[0].equalsIgnoreCase("server")) {
+                // SERVER: Change root nameserver
+                if (commandArgs.length == 2) {
+                    try {
+                        InetAddress rootServer = InetAddress.getByName(commandArgs[1]);
+                        resolver.setRootServer(rootServer);
+                        System.out.println("Root DNS server is now: " + rootServer.getHostAddress());
+                    } catch (UnknownHostException e) {
+                        System.out.println("Invalid root server (" + e.getMessage() + ").");
+                        continue;
+                    }
+                } else {
+                    System.out.println("Invalid call. Format:\n\tserver IP");
+                    continue;
+                }
+            } else if (commandArgs[0].equalsIgnoreCase("forward")) {
+                // FORWARD: Forward queries to upstream recursive resolvers, or resolve them iteratively
+                try {
+                    if (commandArgs.length == 2 && commandArgs[1].equalsIgnoreCase("off"))
+                        setForwarders(null, null);
+                    else if (commandArgs.length == 2 || commandArgs.length == 3)
+                        setForwarders(commandArgs[1], ForwarderPool.Policy.valueOf(
+                                commandArgs.length == 3 ? commandArgs[2].toUpperCase() : "RTT"));
+                    else if (commandArgs.length != 1)
+                        throw new IllegalArgumentException();
+                } catch (IllegalArgumentException | UnknownHostException e) {
+                    System.err.println("Invalid call. Format:\n\tforward [IP[,IP...] [rtt|outstanding]|off]");
+                    continue;
+                }
+                printForwarders();
+            } else if (commandArgs[0].equalsIgnoreCase("trace")) {
+                // TRACE: Turn trace setting on or off
+                if (commandArgs.length == 2) {
+                    if (commandArgs[1].equalsIgnoreCase("on"))
+                        resolver.setVerboseTracing(true);
+                    else if (commandArgs[1].equalsIgnoreCase("off"))
+                        resolver.setVerboseTracing(false);
+                    else {
+                        System.err.println("Invalid call. Format:\n\ttrace on|off");
+                        continue;
+                    }
+                    System.out.println("Verbose tracing is now: " + (resolver.isVerboseTracing() ? "ON" : "OFF"));
+                } else {
+                    System.err.println("Invalid call. Format:\n\ttrace on|off");
+                    continue;
+                }
+            } else if (commandArgs[0].equalsIgnoreCase("prefetch")) {
+                // PREFETCH: Turn refresh-ahead of popular records on or off
+                if (commandArgs.length == 2 && commandArgs[1].equalsIgnoreCase("on"))
+                    setPrefetching(true);
+                else if (commandArgs.length == 2 && commandArgs[1].equalsIgnoreCase("off"))
+                    setPrefetching(false);
+                else {
+                    System.err.println("Invalid call. Format:\n\tprefetch on|off");
+                    continue;
+                }
+                System.out.println("Prefetching is now: " + (commandArgs[1].equalsIgnoreCase("on") ? "ON" : "OFF"));
+            } else if (commandArgs[0].equalsIgnoreCase("stale")) {
+                // STALE: Change how long expired records are kept to be served as stale data
+                if (commandArgs.length == 2) {
+                    try {
+                        cache.setStaleWindow(commandArgs[1].equalsIgnoreCase("off") ? 0 : Long.parseLong(commandArgs[1]));
+                    } catch (NumberFormatException ex) {
+                        System.err.println("Invalid call. Format:\n\tstale [seconds|off]");
+                        continue;
+                    }
+                } else if (commandArgs.length != 1) {
+                    System.err.println("Invalid call. Format:\n\tstale [seconds|off]");
+                    continue;
+                }
+                System.out.println("Expired records are kept for: " + cache.getStaleWindow() + " seconds");
+            } else if (commandArgs[0].equalsIgnoreCase("lookup") ||
+                    commandArgs[0].equalsIgnoreCase("l")) {
+                // LOOKUP: Find and print all results associated to a name.
+                RecordType type;
+                if (commandArgs.length == 2)
+                    type = RecordType.A;
+                else if (commandArgs.length == 3)
+                    try {
+                        type = RecordType.valueOf(commandArgs[2].toUpperCase());
+                    } catch (IllegalArgumentException ex) {
+                        System.err.println("Invalid query type. Must be one of:\n\tA, AAAA, NS, MX, CNAME");
+                        continue;
+                    }
+                else {
+                    System.err.println("Invalid call. Format:\n\tlookup hostName [type]");
+                    continue;
+                }
+                findAndPrintResults(commandArgs[1], type);
+            } else if (commandArgs[0].equalsIgnoreCase("addresses") ||
+                    commandArgs[0].equalsIgnoreCase("a")) {
+                // ADDRESSES: Find and print both the IPv4 and IPv6 addresses of a host
+                boolean waitForBoth;
+                if (commandArgs.length == 2 || (commandArgs.length == 3 && commandArgs[2].equalsIgnoreCase("both")))
+                    waitForBoth = true;
+                else if (commandArgs.length == 3 && commandArgs[2].equalsIgnoreCase("first"))
+                    waitForBoth = false;
+                else {
+                    System.err.println("Invalid call. Format:\n\taddresses hostName [first|both]");
+                    continue;
+                }
+                findAndPrintAddresses(commandArgs[1], waitForBoth);
+            } else if (commandArgs[0].equalsIgnoreCase("batch")) {
+                // BATCH: Resolve every query listed in a file, or in the rest of the standard input
+                int concurrency = DEFAULT_BATCH_CONCURRENCY;
+                BatchResolver.Format format = BatchResolver.Format.TSV;
+                try {
+                    if (commandArgs.length < 2 || commandArgs.length > 4)
+                        throw new IllegalArgumentException();
+                    if (commandArgs.length >= 3)
+                        concurrency = Integer.parseInt(commandArgs[2]);
+                    if (commandArgs.length == 4)
+                        format = BatchResolver.Format.valueOf(commandArgs[3].toUpperCase());
+                    if (concurrency <= 0)
+                        throw new IllegalArgumentException();
+                } catch (IllegalArgumentException ex) {
+                    System.err.println("Invalid call. Format:\n\tbatch file|- [concurrency] [tsv|jsonl]");
+                    continue;
+                }
+                Iterator<String> lines;
+                BufferedReader file = null;
+                if (commandArgs[1].equals("-"))
+                    lines = console != null ? new BufferedReader(console.reader()).lines().iterator() : lineIterator(in);
+                else
+                    try {
+                        file = Files.newBufferedReader(Paths.get(commandArgs[1]));
+                        lines = file.lines().iterator();
+                    } catch (IOException | InvalidPathException ex) {
+                        System.err.println("Could not open " + commandArgs[1] + " (" + ex.getMessage() + ").");
+                        continue;
+                    }
+                resolveBatch(lines, concurrency, format);
+                if (file != null)
+                    try {
+                        file.close();
+                    } catch (IOException ignored) {
+                    }
+            } else if (commandArgs[0].equalsIgnoreCase("dump")) {
+                // DUMP: Print all results still cached, or only those within a zone
+                if (commandArgs.length == 1)
+                    cache.forEachNode(DNSLookupService::printResults);
+                else if (commandArgs.length == 2)
+                    cache.forEachNodeInZone(commandArgs[1], DNSLookupService::printResults);
+                else {
+                    System.err.println("Invalid call. Format:\n\tdump [zone]");
+                    continue;
+                }
+            } else if (commandArgs[0].equalsIgnoreCase("flush")) {
+                // FLUSH: Remove all results cached for a zone
+                if (commandArgs.length != 2) {
+                    System.err.println("Invalid call. Format:\n\tflush zone");
+                    continue;
+                }
+                System.out.println("Removed " + cache.removeZone(commandArgs[1]) + " cached queries");
+            } else if (commandArgs[0].equalsIgnoreCase("save")) {
+                // SAVE: Write a snapshot of the cache now
+                if (commandArgs.length != 1) {
+                    System.err.println("Invalid call. Format:\n\tsave");
+                    continue;
+                }
+                if (snapshot == null) {
+                    System.err.println("No snapshot file. Start with -Ddnscache.snapshot=file to enable snapshots.");
+                    continue;
+                }
+                try {
+                    System.out.println("Saved " + snapshot.save() + " cached queries to " + snapshot.getFile());
+                } catch (IOException e) {
+                    System.err.println("Could not save cache snapshot (" + e.getMessage() + ").");
+                }
+            } else if (commandArgs[0].equalsIgnoreCase("stats")) {
+                // STATS: Print resolver statistics, for people or as JSON
+                if (commandArgs.length == 1)
+                    printStatistics();
+                else if (commandArgs.length == 2 && commandArgs[1].equalsIgnoreCase("json"))
+                    System.out.println(statistics.toJson());
+                else {
+                    System.err.println("Invalid call. Format:\n\tstats [json]");
+                    continue;
+                }
+            } else if (commandArgs[0].equalsIgnoreCase("cache")) {
+                // CACHE: Change the capacity of the cache, then print its usage
+                if (commandArgs.length == 3) {
+                    long limit;
+                    try {
+                        limit = commandArgs[2].equalsIgnoreCase("none") ? Long.MAX_VALUE : Long.parseLong(commandArgs[2]);
+                    } catch (NumberFormatException ex) {
+                        System.err.println("Invalid call. Format:\n\tcache [entries|bytes N|none]");
+                        continue;
+                    }
+                    if (commandArgs[1].equalsIgnoreCase("entries"))
+                        cache.setMaximumEntries(limit);
+                    else if (commandArgs[1].equalsIgnoreCase("bytes"))
+                        cache.setMaximumWeight(limit);
+                    else {
+                        System.err.println("Invalid call. Format:\n\tcache [entries|bytes N|none]");
+                        continue;
+                    }
+                } else if (commandArgs.length != 1) {
+                    System.err.println("Invalid call. Format:\n\tcache [entries|bytes N|none]");
+                    continue;
+                }
+                printCacheUsage();
+            } else {
+                System.err.println("Invalid command. Valid commands are:");
+                System.err.println("\tlookup fqdn [type]");
+                System.err.println("\taddresses fqdn [first|both]");
+                System.err.println("\tbatch file|- [concurrency] [tsv|jsonl]");
+                System.err.println("\ttrace on|off");
+                System.err.println("\tprefetch on|off");
+                System.err.println("\tstale [seconds|off]");
+                System.err.println("\tserver IP");
+                System.err.println("\tforward [IP[,IP...] [rtt|outstanding]|off]");
+                System.err.println("\tdump [zone]");
+                System.err.println("\tflush zone");
+                System.err.println("\tsave");
+                System.err.println("\tcache [entries|bytes N|none]");
+                System.err.println("\tstats [json]");
+                System.err.println("\tquit");
+                continue;
+            }
+
+        } while (true);
+
+        // Without a console, a server keeps running until it is stopped
+        if (server != null) {
+            if (endOfInput) {
+                try {
+                    server.awaitTermination();
+                } catch (InterruptedException ignored) {
+                }
+            }
+            server.close();
+        }
+        statistics.close();
+        transport.close();
+        tcpTransport.close();
+        System.out.println("Goodbye!");
+    }
+
+    /**
+     * Loads the cache from a snapshot file, if it exists, then saves it to the same file every
+     * few seconds and when the program exits.
+     *
+     * @param file            Snapshot file.
+     * @param intervalSeconds Number of seconds between periodic saves, or zero to only save on
+     *                        exit.
+     */
+    private static void loadSnapshot(Path file, long intervalSeconds) {
+        snapshot = new CacheSnapshot(cache, file);
+        try {
+            long start = System.nanoTime();
+            long loaded = snapshot.load();
+            System.out.printf("Loaded %d cached queries from %s in %d ms\n", loaded, file,
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        } catch (IOException e) {
+            System.err.println("Could not load cache snapshot (" + e.getMessage() + ").");
+        }
+        if (intervalSeconds > 0)
+            snapshot.start(intervalSeconds);
+        // Also runs when a server is stopped by a signal
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                snapshot.close();
+            } catch (IOException e) {
+                System.err.println("Could not save cache snapshot (" + e.getMessage() + ").");
+            }
+        }, "dns-cache-snapshot-exit"));
+    }
+
+    /**
+     * Finds all results for a host name and type and prints them on the standard output.
+     *
+     * @param hostName Fully qualified domain name of the host being searched.
+     * @param type     Record type for search.
+     */
+    private static void findAndPrintResults(String hostName, RecordType type) {
+
+        DNSNode node = new DNSNode(hostName, type);
+        printResults(node, resolver.resolve(node));
+    }
+
+    /**
+     * Finds the IPv4 and IPv6 addresses of a host concurrently and prints them on the standard
+     * output, grouped by record type.
+     *
+     * @param hostName    Fully qualified domain name of the host being searched.
+     * @param waitForBoth If false, only the addresses of the first family found are printed.
+     */
+    private static void findAndPrintAddresses(String hostName, boolean waitForBoth) {
+        Set<ResourceRecord> results = resolver.resolveAddresses(hostName, waitForBoth);
+        for (RecordType type : new RecordType[] { RecordType.A, RecordType.AAAA }) {
+            Set<ResourceRecord> family = new LinkedHashSet<>();
+            for (ResourceRecord record : results)
+                if (record.getType() == type)
+                    family.add(record);
+            if (!family.isEmpty() || waitForBoth)
+                printResults(new DNSNode(hostName, type), family);
+        }
+    }
+
+    /**
+     * Resolves a list of queries with a number of lookups in progress at a time, printing the
+     * results on the standard output as they complete, then a summary on the standard error.
+     *
+     * @param lines       Queries, one per line: a host name, optionally followed by a type.
+     * @param concurrency Maximum number of lookups in progress at the same time.
+     * @param format      Format the results are printed in.
+     */
+    private static void resolveBatch(Iterator<String> lines, int concurrency, BatchResolver.Format format) {
+        BatchResolver batch = new BatchResolver(resolver, concurrency, format);
+        // Not closed, since it wraps the standard output
+        PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(System.out), 1 << 16));
+        long start = System.nanoTime();
+        try {
+            batch.run(lines, out);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (UncheckedIOException e) {
+            System.err.println("Could not read queries (" + e.getMessage() + ").");
+        }
+        long elapsed = Math.max(1, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        System.err.printf("Resolved %d queries in %d ms (%d/s), %d failed\n", batch.getResolvedQueryCount(),
+                elapsed, batch.getResolvedQueryCount() * 1000 / elapsed, batch.getFailedQueryCount());
+    }
+
+    /**
+     * Returns the remaining lines of a scanner, read as they are requested.
+     */
+    private static Iterator<String> lineIterator(Scanner in) {
+        return new Iterator<String>() {
+            @Override
+            public boolean hasNext() {
+                return in.hasNextLine();
+            }
+
+            @Override
+            public String next() {
+                return in.nextLine();
+            }
+        };
+    }
+
+    /**
+     * Switches the resolver to forwarding mode, or back to iterative mode. The previous
+     * forwarders, if any, stop being health-checked.
+     *
+     * @param servers Comma-separated addresses of the upstream recursive resolvers, or null to
+     *                resolve queries iteratively.
+     * @param policy  Order in which the upstreams are tried.
+     * @throws UnknownHostException If an address is invalid.
+     */
+    private static void setForwarders(String servers, ForwarderPool.Policy policy) throws UnknownHostException {
+        ForwarderPool pool = null;
+        if (servers != null) {
+            List<InetAddress> addresses = new ArrayList<>();
+            for (String server : servers.split(","))
+                addresses.add(InetAddress.getByName(server));
+            pool = new ForwarderPool(addresses, policy, resolver.getInfrastructure(), transport);
+        }
+        ForwarderPool previous = resolver.getForwarders();
+        resolver.setForwarders(pool);
+        if (previous != null)
+            previous.close();
+    }
+
+    /**
+     * Prints whether queries are forwarded and, if so, the state of every upstream.
+     */
+    private static void printForwarders() {
+        ForwarderPool pool = resolver.getForwarders();
+        if (pool == null) {
+            System.out.println("Forwarding is now: OFF (resolving from " + resolver.getRootServer().getHostAddress() + ")");
+            return;
+        }
+        System.out.println("Forwarding is now: ON (" + pool.getPolicy().name().toLowerCase() + ")");
+        pool.forEachServer(server -> System.out.format("       %-30s %-4s srtt %-6d outstanding %d\n",
+                server.getHostAddress(), pool.isHealthy(server) ? "up" : "down",
+                resolver.getInfrastructure().getSmoothedRTT(server), pool.getOutstandingQueries(server)));
+    }
+
+    /**
+     * Turns refresh-ahead on or off: while on, nodes hit at least PREFETCH_MINIMUM_HITS times
+     * are resolved again in the background once their records are in the last
+     * PREFETCH_FRACTION of their TTL.
+     *
+     * @param enabled true to refresh popular nodes before they expire.
+     */
+    private static void setPrefetching(boolean enabled) {
+        cache.setRefreshAhead(enabled ? prefetcher::prefetch : null, PREFETCH_FRACTION, PREFETCH_MINIMUM_HITS);
+    }
+
+    /**
+     * Prints how many nodes were resolved by querying servers, how many queries were
+     * coalesced with an identical query already in progress, hedged or prefetched, how many
+     * were answered with stale records, how long lookups took, how often the cache had the
+     * answer, and the round-trip statistics of every server queried.
+     */
+    private static void printStatistics() {
+        Histogram.Snapshot latencies = resolver.getLookupLatencies();
+        System.out.printf("%-12s %d, p50 %.1f ms, p90 %.1f ms, p99 %.1f ms\n", "Lookups:", latencies.getCount(),
+                latencies.getPercentile(50) / 1000.0, latencies.getPercentile(90) / 1000.0,
+                latencies.getPercentile(99) / 1000.0);
+        long hits = cache.getHitCount();
+        long misses = cache.getMissCount();
+        System.out.printf("%-12s %d hits, %d misses (%.1f%%), %d expired\n", "Cache:", hits, misses,
+                hits + misses == 0 ? 0.0 : 100.0 * hits / (hits + misses), cache.getExpirationCount());
+        System.out.printf("%-12s %d\n", "Upstream:", resolver.getUpstreamResolutionCount());
+        System.out.printf("%-12s %d (%d timed out)\n", "Sent:", resolver.getSentQueryCount(),
+                resolver.getTimedOutQueryCount());
+        Histogram.Snapshot referrals = resolver.getReferralDepths();
+        Histogram.Snapshot cnames = resolver.getCnameChainLengths();
+        System.out.printf("%-12s mean %.1f, max %d referrals; mean %.1f, max %d CNAMEs\n", "Depth:",
+                referrals.getMean(), referrals.getPercentile(100), cnames.getMean(), cnames.getPercentile(100));
+        System.out.printf("%-12s %d\n", "Coalesced:", resolver.getCoalescedQueryCount());
+        System.out.printf("%-12s %d\n", "In flight:", resolver.getInFlightCount());
+        System.out.printf("%-12s %d\n", "Hedged:", resolver.getHedgedQueryCount());
+        System.out.printf("%-12s %d (%d connections opened, %d open)\n", "TCP:", resolver.getTcpFallbackCount(),
+                tcpTransport.getOpenedConnectionCount(), tcpTransport.getOpenConnectionCount());
+        System.out.printf("%-12s %d\n", "Stale:", resolver.getStaleAnswerCount());
+        System.out.printf("%-12s %d (%d declined)\n", "Prefetched:", prefetcher.getStartedRefreshCount(),
+                prefetcher.getDeclinedRefreshCount());
+        if (server != null) {
+            System.out.printf("%-12s %d\n", "Served:", server.getReceivedQueryCount());
+            System.out.printf("%-12s %d\n", "Dropped:", server.getDroppedQueryCount());
+            System.out.printf("%-12s %d\n", "Failed:", server.getFailedQueryCount());
+            System.out.printf("%-12s %d hits, %d misses, %d entries\n", "Encoded:", server.getEncodedAnswers().getHitCount(),
+                    server.getEncodedAnswers().getMissCount(), server.getEncodedAnswers().size());
+        }
+        resolver.getInfrastructure().forEachServer((server, statistics) ->
+                System.out.format("       %-30s srtt %-6d rttvar %-6d p99 %-6d queries %-6d responses %-6d timeouts %d\n",
+                        server.getHostAddress(), statistics.getSmoothedRTT(), statistics.getRTTVariation(),
+                        statistics.getRoundTripTimes().getPercentile(99), statistics.getQueries(),
+                        statistics.getResponses(), statistics.getTimeouts()));
+    }
+
+    /**
+     * Prints the capacity of the cache, how much of it is used, and how many nodes were
+     * admitted, rejected and evicted because the cache was full.
+     */
+    private static void printCacheUsage() {
+        System.out.printf("%-12s %d / %s\n", "Entries:", cache.getEntryCount(),
+                cache.getMaximumEntries() == Long.MAX_VALUE ? "unbounded" : String.valueOf(cache.getMaximumEntries()));
+        System.out.printf("%-12s %d / %s\n", "Bytes:", cache.getWeight(),
+                cache.getMaximumWeight() == Long.MAX_VALUE ? "unbounded" : String.valueOf(cache.getMaximumWeight()));
+        System.out.printf("%-12s %d\n", "Admitted:", cache.getAdmissionCount());
+        System.out.printf("%-12s %d\n", "Rejected:", cache.getRejectionCount());
+        System.out.printf("%-12s %d\n", "Evicted:", cache.getEvictionCount());
+    }
+
+    /**
+     * Prints the result of a DNS query.
+     *
+     * @param node    Host name and record type used for the query.
+     * @param results Set of results to be printed for the node.
+     */
+    private static void printResults(DNSNode node, Set<ResourceRecord> results) {
+        if (results.isEmpty())
+            System.out.printf("%-30s %-5s %-8d %s\n", node.getHostName(),
+                    node.getType(), -1, "0.0.0.0");
+        for (ResourceRecord record : results) {
+            System.out.printf("%-30s %-5s %-8d %s\n", node.getHostName(),
+                    node.getType(), record.getTTL(), record.getTextResult());
+        }
+    }
+}
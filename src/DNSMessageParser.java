@@ -0,0 +1,380 @@
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+
+/** Cursor-style decoder for DNS messages held in a ByteBuffer. After {@link #reset(ByteBuffer)}
+ * decodes the header, each call to {@link #nextQuestion()} or {@link #nextRecord()} decodes the
+ * next entry of the message, whose fields are then available through the accessors of the
+ * parser. Record data is decoded on request, from the raw bytes of the message.
+ *
+ * <p>The parser never reads outside the message: every access is bounds-checked, names are
+ * limited to 255 bytes and compression pointers must point backwards, so malformed or hostile
+ * messages (including pointer loops) are rejected with a {@link DNSFormatException}. Names are
+ * decoded into a reusable buffer and only turned into a string once complete.</p>
+ *
+ * <p>A parser may be reused for any number of messages, but is not thread-safe.</p>
+ */
+public class DNSMessageParser {
+
+    private static final int HEADER_SIZE = 12;
+    private static final int MAX_NAME_LENGTH = 255;
+    private static final int MAX_LABEL_LENGTH = 63;
+
+    private final char[] nameBuffer = new char[MAX_NAME_LENGTH];
+    private final byte[] addressBuffer4 = new byte[4];
+    private final byte[] addressBuffer16 = new byte[16];
+
+    private ByteBuffer message;
+    private int position;
+
+    private int id;
+    private int flags;
+    private int questionCount;
+    private int answerCount;
+    private int authorityCount;
+    private int additionalCount;
+    private int entriesRead;
+
+    private String name;
+    private int type;
+    private int recordClass;
+    private long ttl;
+    private int dataOffset;
+    private int dataLength;
+
+    /** Starts decoding a new message, reading its header. The message spans from the position
+     * to the limit of the buffer; the buffer's position and limit are not changed.
+     *
+     * @param message Buffer containing the message.
+     * @throws DNSFormatException If the message is shorter than a DNS header.
+     */
+    public void reset(ByteBuffer message) throws DNSFormatException {
+        this.message = message.slice();
+        if (this.message.limit() < HEADER_SIZE)
+            throw new DNSFormatException("Message shorter than header");
+
+        id = readUnsignedShort(0);
+        flags = readUnsignedShort(2);
+        questionCount = readUnsignedShort(4);
+        answerCount = readUnsignedShort(6);
+        authorityCount = readUnsignedShort(8);
+        additionalCount = readUnsignedShort(10);
+        position = HEADER_SIZE;
+        entriesRead = 0;
+        name = null;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public int getFlags() {
+        return flags;
+    }
+
+    public boolean isResponse() {
+        return (flags & 0x8000) != 0;
+    }
+
+    public boolean isAuthoritative() {
+        return (flags & 0x0400) != 0;
+    }
+
+    public boolean isTruncated() {
+        return (flags & 0x0200) != 0;
+    }
+
+    public int getResponseCode() {
+        return flags & 0x000F;
+    }
+
+    public int getQuestionCount() {
+        return questionCount;
+    }
+
+    public int getAnswerCount() {
+        return answerCount;
+    }
+
+    public int getAuthorityCount() {
+        return authorityCount;
+    }
+
+    public int getAdditionalCount() {
+        return additionalCount;
+    }
+
+    /** Decodes the next question of the message. The question's name, type and class are then
+     * available through {@link #getName()}, {@link #getType()} and {@link #getRecordClass()}.
+     *
+     * @throws DNSFormatException If the question is malformed, or all questions have been read.
+     */
+    public void nextQuestion() throws DNSFormatException {
+        if (entriesRead >= questionCount)
+            throw new DNSFormatException("No more questions");
+        name = readName();
+        type = readUnsignedShort(position);
+        recordClass = readUnsignedShort(position + 2);
+        position += 4;
+        ttl = 0;
+        dataOffset = position;
+        dataLength = 0;
+        entriesRead++;
+    }
+
+    /** Decodes the header of the next resource record of the message, whether in the answer,
+     * authority or additional section. Any questions not read yet are skipped. The record's
+     * data is left undecoded, and can be obtained with the data accessors.
+     *
+     * @throws DNSFormatException If the record is malformed, or all records have been read.
+     */
+    public void nextRecord() throws DNSFormatException {
+        while (entriesRead < questionCount)
+            nextQuestion();
+        if (entriesRead >= questionCount + answerCount + authorityCount + additionalCount)
+            throw new DNSFormatException("No more records");
+
+        name = readName();
+        type = readUnsignedShort(position);
+        recordClass = readUnsignedShort(position + 2);
+        ttl = readUnsignedInt(position + 4);
+        // RFC 2181: TTLs with the most significant bit set are treated as zero
+        if (ttl > Integer.MAX_VALUE)
+            ttl = 0;
+        dataLength = readUnsignedShort(position + 8);
+        dataOffset = position + 10;
+        checkBounds(dataOffset, dataLength);
+        position = dataOffset + dataLength;
+        entriesRead++;
+    }
+
+    /** Returns true if the entry last decoded is in the answer section. */
+    public boolean inAnswerSection() {
+        return entriesRead > questionCount && entriesRead <= questionCount + answerCount;
+    }
+
+    /** Returns true if the entry last decoded is in the authority section. */
+    public boolean inAuthoritySection() {
+        return entriesRead > questionCount + answerCount &&
+                entriesRead <= questionCount + answerCount + authorityCount;
+    }
+
+    /** Returns true if the entry last decoded is in the additional section. */
+    public boolean inAdditionalSection() {
+        return entriesRead > questionCount + answerCount + authorityCount;
+    }
+
+    /** Returns true if there are records that have not been decoded yet. */
+    public boolean hasMoreRecords() {
+        return entriesRead < questionCount + answerCount + authorityCount + additionalCount;
+    }
+
+    /** Returns the offset, from the start of the message, of the first byte following the
+     * entry last decoded.
+     */
+    public int getPosition() {
+        return position;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getType() {
+        return type;
+    }
+
+    public RecordType getRecordType() {
+        return RecordType.getByCode(type);
+    }
+
+    public int getRecordClass() {
+        return recordClass;
+    }
+
+    public long getTTL() {
+        return ttl;
+    }
+
+    public int getDataOffset() {
+        return dataOffset;
+    }
+
+    public int getDataLength() {
+        return dataLength;
+    }
+
+    /** Returns the address contained in the data of an A or AAAA record, built directly from
+     * its raw bytes.
+     *
+     * @return The IPv4 or IPv6 address in the record.
+     * @throws DNSFormatException If the record data is not a 4 or 16 byte address.
+     */
+    public InetAddress getAddress() throws DNSFormatException {
+        byte[] address;
+        if (dataLength == 4)
+            address = addressBuffer4;
+        else if (dataLength == 16)
+            address = addressBuffer16;
+        else
+            throw new DNSFormatException("Invalid address length " + dataLength);
+        message.get(dataOffset, address);
+        try {
+            return InetAddress.getByAddress(address);
+        } catch (UnknownHostException e) {
+            throw new DNSFormatException(e.getMessage());
+        }
+    }
+
+    /** Returns the domain name contained in the data of an NS or CNAME record.
+     *
+     * @return The target of the record.
+     * @throws DNSFormatException If the name is malformed.
+     */
+    public String getTargetName() throws DNSFormatException {
+        return readNameAt(dataOffset);
+    }
+
+    /** Returns the preference of an MX record.
+     *
+     * @return The preference of the mail exchange.
+     * @throws DNSFormatException If the record data is too short.
+     */
+    public int getPreference() throws DNSFormatException {
+        return readUnsignedShort(dataOffset);
+    }
+
+    /** Returns the mail exchange of an MX record.
+     *
+     * @return The name of the mail exchange.
+     * @throws DNSFormatException If the name is malformed.
+     */
+    public String getExchange() throws DNSFormatException {
+        return readNameAt(dataOffset + 2);
+    }
+
+    /** Returns the MINIMUM field of an SOA record, which bounds the TTL of negative answers.
+     *
+     * @return The SOA minimum, in seconds.
+     * @throws DNSFormatException If the record data is malformed.
+     */
+    public long getSOAMinimum() throws DNSFormatException {
+        int offset = skipName(skipName(dataOffset));
+        return readUnsignedInt(offset + 16);
+    }
+
+    /** Decodes the record last read into a ResourceRecord, formatting its data according to
+     * its type: an address for A and AAAA records, a name for NS and CNAME records, the
+     * preference and exchange for MX records, and all fields for SOA records. The data of
+     * other record types is not kept.
+     *
+     * @return The decoded record.
+     * @throws DNSFormatException If the record data is malformed.
+     */
+    public ResourceRecord toResourceRecord() throws DNSFormatException {
+        RecordType recordType = getRecordType();
+        switch (recordType) {
+            case A:
+            case AAAA:
+                if (dataLength != (recordType == RecordType.A ? 4 : 16))
+                    throw new DNSFormatException("Invalid address length " + dataLength);
+                byte[] address = new byte[dataLength];
+                message.get(dataOffset, address);
+                return new ResourceRecord(name, recordType, ttl, address);
+            case NS:
+            case CNAME:
+                return new ResourceRecord(name, recordType, ttl, getTargetName());
+            case MX:
+                return new ResourceRecord(name, recordType, ttl, getPreference() + " " + getExchange());
+            case SOA:
+                int offset = dataOffset;
+                String mname = readNameAt(offset);
+                offset = skipName(offset);
+                String rname = readNameAt(offset);
+                offset = skipName(offset);
+                StringBuilder data = new StringBuilder(mname).append(' ').append(rname);
+                for (int i = 0; i < 5; i++)
+                    data.append(' ').append(readUnsignedInt(offset + 4 * i));
+                return new ResourceRecord(name, recordType, ttl, data.toString());
+            default:
+                return new ResourceRecord(name, recordType, ttl, "");
+        }
+    }
+
+    /** Reads the name at the current position, moving the position past it.
+     */
+    private String readName() throws DNSFormatException {
+        String result = readNameAt(position);
+        position = skipName(position);
+        return result;
+    }
+
+    /** Returns the offset of the first byte following the (possibly compressed) name starting
+     * at an offset, without decoding it.
+     */
+    private int skipName(int offset) throws DNSFormatException {
+        while (true) {
+            int length = readUnsignedByte(offset);
+            if ((length & 0xC0) == 0xC0)
+                return offset + 2;
+            if (length == 0)
+                return offset + 1;
+            if (length > MAX_LABEL_LENGTH)
+                throw new DNSFormatException("Invalid label length " + length);
+            offset += length + 1;
+        }
+    }
+
+    /** Decodes the (possibly compressed) name starting at an offset. Labels are separated by
+     * dots; the root name is returned as an empty string. A compression pointer must point
+     * before the label that contains it, which guarantees termination.
+     */
+    private String readNameAt(int offset) throws DNSFormatException {
+        int length = 0;
+        int limit = offset;
+        while (true) {
+            int labelLength = readUnsignedByte(offset);
+            if ((labelLength & 0xC0) == 0xC0) {
+                int target = ((labelLength & 0x3F) << 8) | readUnsignedByte(offset + 1);
+                if (target >= limit)
+                    throw new DNSFormatException("Compression pointer does not point backwards");
+                offset = limit = target;
+                continue;
+            }
+            if (labelLength == 0)
+                break;
+            if (labelLength > MAX_LABEL_LENGTH)
+                throw new DNSFormatException("Invalid label length " + labelLength);
+            if (length + labelLength + 1 > MAX_NAME_LENGTH)
+                throw new DNSFormatException("Name too long");
+            checkBounds(offset + 1, labelLength);
+
+            if (length > 0)
+                nameBuffer[length++] = '.';
+            for (int i = 1; i <= labelLength; i++)
+                nameBuffer[length++] = (char) (message.get(offset + i) & 0xFF);
+            offset += labelLength + 1;
+        }
+        return new String(nameBuffer, 0, length);
+    }
+
+    private int readUnsignedByte(int offset) throws DNSFormatException {
+        checkBounds(offset, 1);
+        return message.get(offset) & 0xFF;
+    }
+
+    private int readUnsignedShort(int offset) throws DNSFormatException {
+        checkBounds(offset, 2);
+        return message.getShort(offset) & 0xFFFF;
+    }
+
+    private long readUnsignedInt(int offset) throws DNSFormatException {
+        checkBounds(offset, 4);
+        return message.getInt(offset) & 0xFFFFFFFFL;
+    }
+
+    private void checkBounds(int offset, int length) throws DNSFormatException {
+        if (offset < 0 || length < 0 || offset + length > message.limit())
+            throw new DNSFormatException("Message truncated at offset " + offset);
+    }
+}
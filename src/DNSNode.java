@@ -1,55 +1,97 @@
-import java.io.Serializable;
-
-/** DNS nodes can be used to specify an individual DNS query or the key to a specific result.
- * Each node represents a fully-qualified domain name (represented by hostName) and a record
- * type. Two nodes with the same host name and type are considered equal.
- */
-public class DNSNode implements Comparable<DNSNode>, Serializable {
-
-    private String hostName;
-    private RecordType type;
-
-    public DNSNode(String hostName, RecordType type) {
-        this.hostName = hostName;
-        this.type = type;
-    }
-
-    public String getHostName() {
-        return hostName;
-    }
-
-    public RecordType getType() {
-        return type;
-    }
-
-    @Override
-    public boolean equals(Object o) {
-        if (this == o) return true;
-        if (o == null || getClass() != o.getClass()) return false;
-
-        DNSNode dnsNode = (DNSNode) o;
-
-        if (!hostName.equals(dnsNode.hostName)) return false;
-        return type == dnsNode.type;
-    }
-
-    @Override
-    public int hashCode() {
-        int result = hostName.hashCode();
-        result = 31 * result + type.hashCode();
-        return result;
-    }
-
-    @Override
-    public String toString() {
-        return hostName + " (" + type + ")";
-    }
-
-    @Override
-    public int compareTo(DNSNode o) {
-        if (!hostName.equalsIgnoreCase(o.hostName))
-            return hostName.compareToIgnoreCase(o.hostName);
-        else
-            return type.compareTo(o.type);
-    }
-}
+import java.io.Serializable;
+import java.util.Locale;
+
+/** DNS nodes can be used to specify an individual DNS query or the key to a specific result.
+ * Each node represents a fully-qualified domain name (represented by hostName) and a record
+ * type. Two nodes with the same host name and type are considered equal. Host names are kept
+ * in canonical form (see {@link #canonicalName(String)}), so they are compared ignoring case
+ * and any trailing dot.
+ */
+public class DNSNode implements Comparable<DNSNode>, Serializable {
+
+    private String hostName;
+    private RecordType type;
+    private int hash;
+    private transient volatile byte[] encodedQuestion;
+
+    public DNSNode(String hostName, RecordType type) {
+        this.hostName = canonicalName(hostName);
+        this.type = type;
+    }
+
+    /** Returns the canonical form of a domain name: in lower case, and without a trailing dot.
+     * The root is represented by an empty name. A name already in canonical form is returned
+     * as is, without being copied.
+     *
+     * @param name Domain name, in any case, with or without a trailing dot.
+     * @return The canonical name.
+     */
+    public static String canonicalName(String name) {
+        if (name.endsWith("."))
+            name = name.substring(0, name.length() - 1);
+        return name.toLowerCase(Locale.ROOT);
+    }
+
+    /** Returns the parent of a canonical name, i.e., the name without its first label. The
+     * parent of a top-level domain is the root, and the root has no parent.
+     */
+    static String parentName(String name) {
+        int dot = name.indexOf('.');
+        return dot < 0 ? "" : name.substring(dot + 1);
+    }
+
+    public String getHostName() {
+        return hostName;
+    }
+
+    public RecordType getType() {
+        return type;
+    }
+
+    /** Returns the question section of a query for this node, in wire format. The question is
+     * encoded the first time it is needed, and reused for every later query for the node.
+     *
+     * @return The encoded QNAME, QTYPE and QCLASS. The array must not be modified.
+     * @throws IllegalArgumentException If the host name is not a valid domain name.
+     */
+    byte[] getEncodedQuestion() {
+        byte[] question = encodedQuestion;
+        if (question == null)
+            encodedQuestion = question = DNSQueryEncoder.encodeQuestion(hostName, type.getCode());
+        return question;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+
+        DNSNode dnsNode = (DNSNode) o;
+
+        if (type != dnsNode.type) return false;
+        return hostName.equals(dnsNode.hostName);
+    }
+
+    @Override
+    public int hashCode() {
+        int result = hash;
+        if (result == 0) {
+            result = 31 * hostName.hashCode() + type.ordinal();
+            hash = result;
+        }
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return hostName + " (" + type + ")";
+    }
+
+    @Override
+    public int compareTo(DNSNode o) {
+        if (!hostName.equals(o.hostName))
+            return hostName.compareTo(o.hostName);
+        else
+            return type.compareTo(o.type);
+    }
+}
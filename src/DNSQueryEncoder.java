@@ -0,0 +1,127 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/** Encodes DNS queries. The question section of a query (QNAME, QTYPE and QCLASS) is encoded
+ * once per {@link DNSNode} and cached in the node, and each query is assembled in a direct
+ * buffer owned by the calling thread, so encoding a query does not allocate. The transaction
+ * ID is left as zero, to be set by the transport when the query is sent. Queries may carry an
+ * EDNS0 OPT record (RFC 6891), advertising that responses larger than 512 bytes can be
+ * received over UDP.
+ */
+public final class DNSQueryEncoder {
+
+    private static final int MAX_QUERY_SIZE = 512;
+    private static final int MAX_LABEL_LENGTH = 63;
+    private static final int MAX_NAME_LENGTH = 255;
+    private static final int CLASS_IN = 1;
+    private static final int TYPE_OPT = 41;
+
+    private static final ThreadLocal<ByteBuffer> buffers =
+            ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(MAX_QUERY_SIZE));
+
+    private DNSQueryEncoder() {
+    }
+
+    /** Encodes a query for a node into the calling thread's query buffer. The buffer is only
+     * valid until the next call to this method by the same thread, and should be sent before
+     * then.
+     *
+     * @param node  Host name and record type being queried.
+     * @param flags Value of the flags field of the header (e.g., 0x0100 to request recursion).
+     * @return The thread's query buffer, with the query between position zero and the limit.
+     * @throws IllegalArgumentException If the host name is not a valid domain name.
+     */
+    public static ByteBuffer encode(DNSNode node, int flags) {
+        return encode(node, flags, 0);
+    }
+
+    /** Encodes a query for a node into the calling thread's query buffer, with an EDNS0 OPT
+     * record in the additional section if a UDP payload size is given. The buffer is only
+     * valid until the next call to this method by the same thread, and should be sent before
+     * then.
+     *
+     * @param node        Host name and record type being queried.
+     * @param flags       Value of the flags field of the header (e.g., 0x0100 to request recursion).
+     * @param payloadSize Largest UDP response accepted, in bytes, or 0 to send no OPT record.
+     * @return The thread's query buffer, with the query between position zero and the limit.
+     * @throws IllegalArgumentException If the host name is not a valid domain name.
+     */
+    public static ByteBuffer encode(DNSNode node, int flags, int payloadSize) {
+        ByteBuffer buffer = buffers.get();
+        buffer.clear();
+        // Transaction ID (set by the transport)
+        buffer.putShort((short) 0);
+        buffer.putShort((short) flags);
+        // Questions (always 1 question)
+        buffer.putShort((short) 1);
+        // Answer, Authority and Additional RRs
+        buffer.putShort((short) 0);
+        buffer.putShort((short) 0);
+        buffer.putShort((short) (payloadSize > 0 ? 1 : 0));
+        buffer.put(node.getEncodedQuestion());
+        if (payloadSize > 0) {
+            // OPT record: root name, payload size as class, no extended flags, no options
+            buffer.put((byte) 0);
+            buffer.putShort((short) TYPE_OPT);
+            buffer.putShort((short) payloadSize);
+            buffer.putInt(0);
+            buffer.putShort((short) 0);
+        }
+        return buffer.flip();
+    }
+
+    /** Encodes a question: the host name as a sequence of length-prefixed labels, followed by
+     * the record type and the IN class. A trailing dot in the host name is ignored.
+     *
+     * @param hostName Fully qualified domain name.
+     * @param type     Record type code.
+     * @return The question in wire format.
+     * @throws IllegalArgumentException If the host name has an empty or over-long label, or is
+     *                                  longer than 255 bytes once encoded.
+     */
+    static byte[] encodeQuestion(String hostName, int type) {
+        byte[] name = encodeName(hostName);
+        byte[] question = new byte[name.length + 4];
+        System.arraycopy(name, 0, question, 0, name.length);
+        question[name.length] = (byte) (type >>> 8);
+        question[name.length + 1] = (byte) type;
+        question[name.length + 2] = (byte) (CLASS_IN >>> 8);
+        question[name.length + 3] = (byte) CLASS_IN;
+        return question;
+    }
+
+    /** Encodes a host name as a sequence of length-prefixed labels terminated by the root
+     * label. ASCII names are copied byte by byte; other names are encoded as UTF-8.
+     */
+    static byte[] encodeName(String hostName) {
+        int end = hostName.endsWith(".") ? hostName.length() - 1 : hostName.length();
+        byte[] bytes = null;
+        for (int i = 0; i < end; i++)
+            if (hostName.charAt(i) >= 0x80) {
+                bytes = hostName.substring(0, end).getBytes(StandardCharsets.UTF_8);
+                end = bytes.length;
+                break;
+            }
+
+        if (end + 2 > MAX_NAME_LENGTH)
+            throw new IllegalArgumentException("Name too long: " + hostName);
+        if (end == 0)
+            return new byte[] { 0 };
+
+        byte[] name = new byte[end + 2];
+        int labelStart = 0;
+        for (int i = 0; i <= end; i++) {
+            int c = i == end ? '.' : bytes != null ? bytes[i] : hostName.charAt(i);
+            if (c == '.') {
+                int labelLength = i - labelStart;
+                if (labelLength == 0 || labelLength > MAX_LABEL_LENGTH)
+                    throw new IllegalArgumentException("Invalid label in name: " + hostName);
+                name[labelStart] = (byte) labelLength;
+                labelStart = i + 1;
+            } else
+                name[i + 1] = (byte) c;
+        }
+        name[end + 1] = 0;
+        return name;
+    }
+}
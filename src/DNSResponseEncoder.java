@@ -0,0 +1,283 @@
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/** Encodes DNS responses, compressing names (RFC 1035, section 4.1.4): every name written is
+ * remembered, suffix by suffix, and later occurrences of a known suffix are replaced by a
+ * pointer to its first occurrence. A response is built by calling {@link #start} with the
+ * header and question, then adding records in section order, and finally calling
+ * {@link #finish()}. If a record does not fit in the buffer, the response is cut back to its
+ * question and marked as truncated, as a client would then retry over TCP. A response may end
+ * with an OPT record (EDNS0, RFC 6891) advertising the payload size accepted in queries.
+ *
+ * <p>An encoder may be reused for any number of responses, but is not thread-safe.</p>
+ */
+public class DNSResponseEncoder {
+
+    private static final int MAX_POINTER_OFFSET = 0x3FFF;
+    private static final int CLASS_IN = 1;
+    private static final int TYPE_OPT = 41;
+
+    /** Size of an OPT record without options. */
+    static final int OPT_SIZE = 11;
+
+    private final Map<String, Integer> names = new HashMap<>();
+    private int[] ttlOffsets = new int[16];
+    private long[] expirations = new long[16];
+
+    private ByteBuffer buffer;
+    private int questionEnd;
+    private int answerCount;
+    private int authorityCount;
+    private boolean truncated;
+    private int lastTTLOffset;
+    private int ednsPayloadSize;
+
+    /** Starts a new response in a buffer, writing its header and question. The buffer is
+     * cleared, and its capacity is the maximum size of the response.
+     *
+     * @param buffer   Buffer the response is written to.
+     * @param id       Transaction ID of the query being answered.
+     * @param flags    Flags of the response, including the response code.
+     * @param hostName Host name in the question.
+     * @param type     Record type code in the question.
+     */
+    public void start(ByteBuffer buffer, int id, int flags, String hostName, int type) {
+        start(buffer, id, flags, hostName, type, 0);
+    }
+
+    /** Starts a new response in a buffer, writing its header and question, and keeping room
+     * at the end of the buffer for an OPT record, which is added even if the response is
+     * truncated. The buffer is cleared, and its capacity is the maximum size of the response.
+     *
+     * @param buffer          Buffer the response is written to.
+     * @param id              Transaction ID of the query being answered.
+     * @param flags           Flags of the response, including the response code.
+     * @param hostName        Host name in the question.
+     * @param type            Record type code in the question.
+     * @param ednsPayloadSize Payload size advertised in the OPT record, or zero for no OPT
+     *                        record.
+     */
+    public void start(ByteBuffer buffer, int id, int flags, String hostName, int type, int ednsPayloadSize) {
+        this.buffer = buffer;
+        this.ednsPayloadSize = ednsPayloadSize;
+        names.clear();
+        answerCount = 0;
+        authorityCount = 0;
+        truncated = false;
+
+        buffer.clear();
+        buffer.limit(recordLimit());
+        buffer.putShort((short) id);
+        buffer.putShort((short) flags);
+        buffer.putShort((short) 1);
+        buffer.putShort((short) 0);
+        buffer.putShort((short) 0);
+        buffer.putShort((short) 0);
+        writeName(hostName);
+        buffer.putShort((short) type);
+        buffer.putShort((short) CLASS_IN);
+        questionEnd = buffer.position();
+    }
+
+    /** Adds a record to the answer section. Must not be called after a record was added to
+     * the authority section.
+     *
+     * @param record The record to be added.
+     * @return false if the record could not be encoded, or the response was truncated.
+     */
+    public boolean addAnswer(ResourceRecord record) {
+        if (truncated || !writeRecord(record)) return false;
+        if (answerCount == ttlOffsets.length) {
+            ttlOffsets = Arrays.copyOf(ttlOffsets, 2 * answerCount);
+            expirations = Arrays.copyOf(expirations, 2 * answerCount);
+        }
+        ttlOffsets[answerCount] = lastTTLOffset;
+        expirations[answerCount] = record.getExpirationTime();
+        answerCount++;
+        return true;
+    }
+
+    /** Adds a record to the authority section.
+     *
+     * @param record The record to be added.
+     * @return false if the record could not be encoded, or the response was truncated.
+     */
+    public boolean addAuthority(ResourceRecord record) {
+        if (truncated || !writeRecord(record)) return false;
+        authorityCount++;
+        return true;
+    }
+
+    public boolean isTruncated() {
+        return truncated;
+    }
+
+    /** Returns the offset, from the start of the response, of the end of the question.
+     */
+    int getQuestionEnd() {
+        return questionEnd;
+    }
+
+    /** Returns the offsets, from the start of the response, of the TTL fields of the records
+     * in the answer section, in the order the records were added.
+     */
+    int[] getAnswerTTLOffsets() {
+        return Arrays.copyOf(ttlOffsets, answerCount);
+    }
+
+    /** Returns the expiration times of the records in the answer section, in milliseconds
+     * since the epoch, in the order the records were added.
+     */
+    long[] getAnswerExpirations() {
+        return Arrays.copyOf(expirations, answerCount);
+    }
+
+    /** Completes the response, adding the OPT record if any and filling in the record counts
+     * of the header.
+     *
+     * @return The buffer, with the response between position zero and the limit.
+     */
+    public ByteBuffer finish() {
+        if (truncated)
+            buffer.putShort(2, (short) (buffer.getShort(2) | 0x0200));
+        buffer.putShort(6, (short) answerCount);
+        buffer.putShort(8, (short) authorityCount);
+        if (ednsPayloadSize > 0) {
+            buffer.limit(buffer.capacity());
+            writeOpt(buffer, ednsPayloadSize);
+            buffer.putShort(10, (short) 1);
+        }
+        return buffer.flip();
+    }
+
+    /** Writes an OPT record without options at the position of a buffer: version 0, no
+     * extended response code and no flags.
+     *
+     * @param buffer      Buffer the record is written to.
+     * @param payloadSize Largest UDP payload, in bytes, accepted by the sender.
+     */
+    static void writeOpt(ByteBuffer buffer, int payloadSize) {
+        buffer.put((byte) 0);
+        buffer.putShort((short) TYPE_OPT);
+        buffer.putShort((short) payloadSize);
+        buffer.putInt(0);
+        buffer.putShort((short) 0);
+    }
+
+    /** Returns the offset past which no record may be written, leaving room for the OPT record.
+     */
+    private int recordLimit() {
+        return buffer.capacity() - (ednsPayloadSize > 0 ? OPT_SIZE : 0);
+    }
+
+    /** Writes a record, or truncates the response if it does not fit. Records whose data
+     * cannot be encoded from their textual form are skipped.
+     */
+    private boolean writeRecord(ResourceRecord record) {
+        int start = buffer.position();
+        try {
+            writeName(record.getHostName());
+            buffer.putShort((short) record.getType().getCode());
+            buffer.putShort((short) CLASS_IN);
+            lastTTLOffset = buffer.position();
+            buffer.putInt((int) Math.max(0, record.getTTL()));
+            int lengthOffset = buffer.position();
+            buffer.putShort((short) 0);
+            if (!writeData(record)) {
+                rewind(start);
+                return false;
+            }
+            buffer.putShort(lengthOffset, (short) (buffer.position() - lengthOffset - 2));
+            return true;
+        } catch (BufferOverflowException e) {
+            truncate();
+            return false;
+        } catch (IllegalArgumentException e) {
+            // Malformed name or data (e.g., from a record of an unsupported type)
+            rewind(start);
+            return false;
+        }
+    }
+
+    private boolean writeData(ResourceRecord record) {
+        String[] fields;
+        switch (record.getType()) {
+            case A:
+            case AAAA:
+                byte[] address = record.getAddressBytes();
+                if (address == null) return false;
+                buffer.put(address);
+                return true;
+            case NS:
+            case CNAME:
+                writeName(record.getTextResult());
+                return true;
+            case MX:
+                fields = record.getTextResult().split(" ");
+                if (fields.length != 2) return false;
+                buffer.putShort((short) Integer.parseInt(fields[0]));
+                writeName(fields[1]);
+                return true;
+            case SOA:
+                fields = record.getTextResult().split(" ");
+                if (fields.length != 7) return false;
+                writeName(fields[0]);
+                writeName(fields[1]);
+                for (int i = 2; i < 7; i++)
+                    buffer.putInt((int) Long.parseLong(fields[i]));
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /** Removes all records from the response, leaving only the header and question, and
+     * marks it as truncated.
+     */
+    private void truncate() {
+        truncated = true;
+        answerCount = 0;
+        authorityCount = 0;
+        buffer.limit(recordLimit());
+        rewind(questionEnd);
+    }
+
+    /** Moves the end of the response back to an earlier position, forgetting any name written
+     * after it.
+     */
+    private void rewind(int position) {
+        buffer.position(position);
+        names.values().removeIf(offset -> offset >= position);
+    }
+
+    /** Writes a name, replacing its longest suffix already written by a pointer. A trailing
+     * dot in the name is ignored.
+     */
+    private void writeName(String name) {
+        if (name.endsWith("."))
+            name = name.substring(0, name.length() - 1);
+        while (!name.isEmpty()) {
+            Integer offset = names.get(name.toLowerCase(Locale.ROOT));
+            if (offset != null) {
+                buffer.putShort((short) (0xC000 | offset));
+                return;
+            }
+            if (buffer.position() <= MAX_POINTER_OFFSET)
+                names.put(name.toLowerCase(Locale.ROOT), buffer.position());
+
+            int dot = name.indexOf('.');
+            int labelLength = dot < 0 ? name.length() : dot;
+            if (labelLength == 0 || labelLength > 63)
+                throw new IllegalArgumentException("Invalid label in name: " + name);
+            buffer.put((byte) labelLength);
+            for (int i = 0; i < labelLength; i++)
+                buffer.put((byte) name.charAt(i));
+            name = dot < 0 ? "" : name.substring(dot + 1);
+        }
+        buffer.put((byte) 0);
+    }
+}
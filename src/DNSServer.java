@@ -0,0 +1,427 @@
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.DatagramChannel;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/** Caching DNS server. Listens for standard queries on a UDP port, and on the TCP port with
+ * the same number, and answers each of them from the cache or by resolving it with a
+ * {@link Resolver}, so any DNS client can use the resolver over the network. Datagrams are
+ * received by a single thread and handed to a pool of worker threads, since a worker is
+ * blocked for as long as its query takes to resolve. When all workers are busy and the queue
+ * of pending queries is full, new queries are dropped and left for the client to retry.
+ *
+ * <p>Each TCP connection has a reader thread, which hands the length-prefixed queries it
+ * receives to the same workers, so a client may pipeline queries and get their responses in
+ * whatever order they are resolved (RFC 7766). A connection is closed once it has been idle,
+ * with no query outstanding, for a while.</p>
+ *
+ * <p>Positive answers are kept in an {@link EncodedAnswerCache} once encoded, so queries for
+ * the same records are answered by copying bytes rather than encoding them again.</p>
+ *
+ * <p>UDP responses never exceed 512 bytes, or the payload size advertised in the OPT record
+ * of the query (EDNS0, RFC 6891), up to 1232 bytes; larger answers are truncated (TC bit set)
+ * and should be repeated over TCP. Queries with an OPT record get one in their response.
+ * Queries for record types the resolver does not support, or classes other than IN, are
+ * answered with NOTIMP, and malformed queries with FORMERR.</p>
+ */
+public class DNSServer implements Closeable {
+
+    private static final int MAX_UDP_MESSAGE = 512;
+    // Largest UDP response, and the payload size advertised in OPT records: avoids IP fragmentation
+    private static final int MAX_EDNS_PAYLOAD = 1232;
+    private static final int MAX_TCP_MESSAGE = 65535;
+    private static final int RECEIVE_BUFFER_SIZE = 4096;
+    private static final int MAX_QUEUED_QUERIES = 4096;
+    private static final int MAX_TCP_CONNECTIONS = 128;
+    private static final int TCP_IDLE_TIMEOUT = 10000;
+    private static final int CLASS_IN = 1;
+    private static final int TYPE_OPT = 41;
+
+    private static final int RCODE_FORMERR = 1;
+    private static final int RCODE_SERVFAIL = 2;
+    private static final int RCODE_NXDOMAIN = 3;
+    private static final int RCODE_NOTIMP = 4;
+
+    private final Resolver resolver;
+    private final DNSCache cache;
+    private final EncodedAnswerCache encodedAnswers = new EncodedAnswerCache();
+    private final DatagramChannel channel;
+    private final ServerSocket serverSocket;
+    private final Set<Socket> connections = ConcurrentHashMap.newKeySet();
+    private final ThreadPoolExecutor workers;
+    private final Thread receiver;
+
+    private final ThreadLocal<DNSMessageParser> parsers = ThreadLocal.withInitial(DNSMessageParser::new);
+    private final ThreadLocal<DNSResponseEncoder> encoders = ThreadLocal.withInitial(DNSResponseEncoder::new);
+    private final ThreadLocal<ByteBuffer> datagramBuffers =
+            ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(MAX_EDNS_PAYLOAD));
+    private final ThreadLocal<ByteBuffer> streamBuffers =
+            ThreadLocal.withInitial(() -> ByteBuffer.allocate(MAX_TCP_MESSAGE));
+
+    private final LongAdder receivedQueries = new LongAdder();
+    private final LongAdder droppedQueries = new LongAdder();
+    private final LongAdder failedQueries = new LongAdder();
+
+    /** Creates a server and starts listening for queries.
+     *
+     * @param resolver    Resolver used to answer queries.
+     * @param address     Local address and port to listen on. If the port is zero, the TCP
+     *                    port has the number of the UDP port picked.
+     * @param workerCount Number of queries that may be resolved concurrently.
+     * @throws IOException If the UDP or TCP socket could not be bound.
+     */
+    public DNSServer(Resolver resolver, InetSocketAddress address, int workerCount) throws IOException {
+        this.resolver = resolver;
+        this.cache = resolver.getCache();
+        this.channel = DatagramChannel.open();
+        this.serverSocket = new ServerSocket();
+        try {
+            channel.bind(address);
+            serverSocket.bind(new InetSocketAddress(address.getAddress(), getLocalAddress().getPort()));
+        } catch (IOException e) {
+            channel.close();
+            serverSocket.close();
+            throw e;
+        }
+
+        workers = new ThreadPoolExecutor(workerCount, workerCount, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(MAX_QUEUED_QUERIES), runnable -> {
+                    Thread thread = new Thread(runnable, "dns-server-worker");
+                    thread.setDaemon(true);
+                    return thread;
+                }, (runnable, executor) -> {
+                    droppedQueries.increment();
+                    if (runnable instanceof StreamQuery)
+                        ((StreamQuery) runnable).outstanding.decrementAndGet();
+                });
+
+        receiver = new Thread(this::receiveLoop, "dns-server-receiver");
+        receiver.setDaemon(true);
+        receiver.start();
+
+        Thread acceptor = new Thread(this::acceptLoop, "dns-server-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    /** Returns the local address the server listens on, including the port actually bound if
+     * port zero was requested.
+     *
+     * @return The local socket address of the server.
+     * @throws IOException If the address could not be read.
+     */
+    public InetSocketAddress getLocalAddress() throws IOException {
+        return (InetSocketAddress) channel.getLocalAddress();
+    }
+
+    public EncodedAnswerCache getEncodedAnswers() {
+        return encodedAnswers;
+    }
+
+    public long getReceivedQueryCount() {
+        return receivedQueries.sum();
+    }
+
+    public long getDroppedQueryCount() {
+        return droppedQueries.sum();
+    }
+
+    public long getFailedQueryCount() {
+        return failedQueries.sum();
+    }
+
+    /** Waits until the server is closed.
+     *
+     * @throws InterruptedException If the calling thread is interrupted while waiting.
+     */
+    public void awaitTermination() throws InterruptedException {
+        receiver.join();
+    }
+
+    @Override
+    public void close() {
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+        try {
+            serverSocket.close();
+        } catch (IOException ignored) {
+        }
+        for (Socket socket : connections)
+            closeQuietly(socket);
+        workers.shutdownNow();
+    }
+
+    private void receiveLoop() {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(RECEIVE_BUFFER_SIZE);
+        while (channel.isOpen()) {
+            SocketAddress client;
+            try {
+                buffer.clear();
+                client = channel.receive(buffer);
+            } catch (AsynchronousCloseException e) {
+                return;
+            } catch (IOException e) {
+                continue;
+            }
+            buffer.flip();
+            byte[] query = new byte[buffer.remaining()];
+            buffer.get(query);
+            receivedQueries.increment();
+            workers.execute(() -> {
+                ByteBuffer response = answer(query, datagramBuffers.get(), false);
+                if (response != null)
+                    send(client, response);
+            });
+        }
+    }
+
+    private void acceptLoop() {
+        while (!serverSocket.isClosed()) {
+            Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (IOException e) {
+                continue;
+            }
+            if (connections.size() >= MAX_TCP_CONNECTIONS) {
+                closeQuietly(socket);
+                continue;
+            }
+            connections.add(socket);
+            Thread reader = new Thread(() -> readLoop(socket), "dns-server-tcp-reader");
+            reader.setDaemon(true);
+            reader.start();
+        }
+    }
+
+    /** Reads length-prefixed queries from a TCP connection until the client closes it, or it
+     * has been idle with no query outstanding for TCP_IDLE_TIMEOUT milliseconds.
+     */
+    private void readLoop(Socket socket) {
+        AtomicInteger outstanding = new AtomicInteger();
+        try (socket) {
+            socket.setSoTimeout(TCP_IDLE_TIMEOUT);
+            socket.setTcpNoDelay(true);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+            while (true) {
+                // Only time out between queries; a query cut short closes the connection
+                int lengthHigh;
+                try {
+                    lengthHigh = in.read();
+                } catch (SocketTimeoutException e) {
+                    if (outstanding.get() > 0)
+                        continue;
+                    return;
+                }
+                if (lengthHigh < 0)
+                    return;
+                byte[] query = new byte[lengthHigh << 8 | in.readUnsignedByte()];
+                in.readFully(query);
+                receivedQueries.increment();
+                outstanding.incrementAndGet();
+                workers.execute(new StreamQuery(query, out, outstanding));
+            }
+        } catch (IOException e) {
+            // Closed by the client, or by the server
+        } finally {
+            connections.remove(socket);
+        }
+    }
+
+    /** Answers a single query. Queries too malformed to identify (shorter than a header, or
+     * responses rather than queries) are ignored.
+     *
+     * @param query  The query received.
+     * @param buffer Buffer of the calling thread the response may be written to.
+     * @param stream true if the query was received over TCP, so the response may take the whole
+     *               buffer, false if it was received over UDP.
+     * @return The response, from position zero to the limit, or null if the query is ignored.
+     */
+    private ByteBuffer answer(byte[] query, ByteBuffer buffer, boolean stream) {
+        DNSMessageParser parser = parsers.get();
+        DNSResponseEncoder encoder = encoders.get();
+        try {
+            parser.reset(ByteBuffer.wrap(query));
+        } catch (DNSFormatException e) {
+            return null;
+        }
+        if (parser.isResponse())
+            return null;
+
+        // Echo the opcode and RD bit; recursion is always available
+        int flags = 0x8000 | (parser.getFlags() & 0x7900) | 0x0080;
+        int opcode = (parser.getFlags() >> 11) & 0xF;
+
+        String hostName;
+        int type;
+        int recordClass;
+        int questionEnd;
+        int clientPayloadSize;
+        try {
+            if (parser.getQuestionCount() != 1)
+                throw new DNSFormatException("Expected exactly one question");
+            parser.nextQuestion();
+            hostName = parser.getName();
+            type = parser.getType();
+            recordClass = parser.getRecordClass();
+            questionEnd = parser.getPosition();
+            clientPayloadSize = readEdnsPayloadSize(parser);
+        } catch (DNSFormatException e) {
+            return encodeError(encoder, buffer.clear(), parser.getId(), flags | RCODE_FORMERR);
+        }
+
+        // Over UDP, a response must fit in the payload size the client accepts
+        int size = stream ? MAX_TCP_MESSAGE :
+                clientPayloadSize > 0 ? Math.min(clientPayloadSize, MAX_EDNS_PAYLOAD) : MAX_UDP_MESSAGE;
+        ByteBuffer response = buffer.clear().limit(Math.min(size, buffer.capacity())).slice();
+        int ednsPayloadSize = clientPayloadSize > 0 ? MAX_EDNS_PAYLOAD : 0;
+
+        RecordType recordType = RecordType.getByCode(type);
+        if (opcode != 0 || recordClass != CLASS_IN || recordType == RecordType.OTHER) {
+            encoder.start(response, parser.getId(), flags | RCODE_NOTIMP, hostName, type, ednsPayloadSize);
+            return encoder.finish();
+        }
+
+        // Answers already cached are sent from their encoded form, if it is still current
+        DNSNode node = new DNSNode(hostName, recordType);
+        // A miss is counted by the resolver, which reads the cache again
+        Set<ResourceRecord> results = cache.getCachedResults(node, false);
+        if (!results.isEmpty() && encodedAnswers.write(node, results, query, questionEnd, ednsPayloadSize, response)) {
+            return response;
+        }
+
+        if (results.isEmpty()) {
+            try {
+                results = resolver.resolve(node);
+            } catch (RuntimeException e) {
+                results = Collections.emptySet();
+            }
+        }
+
+        int rcode = 0;
+        if (results.isEmpty()) {
+            if (cache.hasNameError(node))
+                rcode = RCODE_NXDOMAIN;
+            else if (!cache.hasNegativeResult(node)) {
+                rcode = RCODE_SERVFAIL;
+                failedQueries.increment();
+            }
+        }
+        encoder.start(response, parser.getId(), flags | rcode, hostName, type, ednsPayloadSize);
+        for (ResourceRecord record : results)
+            encoder.addAnswer(record);
+        if (results.isEmpty() && rcode != RCODE_SERVFAIL) {
+            ResourceRecord soa = findEnclosingSOA(hostName);
+            if (soa != null)
+                encoder.addAuthority(soa);
+        }
+        encoder.finish();
+        if (!results.isEmpty() && !encoder.isTruncated() && encoder.getQuestionEnd() == questionEnd &&
+                cache.isCached(node, results))
+            encodedAnswers.put(node, results, response, questionEnd,
+                    encoder.getAnswerTTLOffsets(), encoder.getAnswerExpirations());
+        return response;
+    }
+
+    /** Returns the UDP payload size advertised in the OPT record of a query (EDNS0), or zero
+     * if it has none. Sizes below 512 bytes are taken as 512 (RFC 6891, section 6.2.5).
+     */
+    private static int readEdnsPayloadSize(DNSMessageParser parser) throws DNSFormatException {
+        while (parser.hasMoreRecords()) {
+            parser.nextRecord();
+            if (parser.inAdditionalSection() && parser.getType() == TYPE_OPT)
+                return Math.max(MAX_UDP_MESSAGE, parser.getRecordClass());
+        }
+        return 0;
+    }
+
+    /** Encodes a response with no question, for queries whose question could not be read.
+     */
+    private ByteBuffer encodeError(DNSResponseEncoder encoder, ByteBuffer response, int id, int flags) {
+        encoder.start(response, id, flags, "", 0);
+        ByteBuffer message = encoder.finish();
+        // Drop the placeholder question, keeping only the header
+        message.putShort(4, (short) 0);
+        return message.limit(12);
+    }
+
+    /** Returns a cached SOA record for the closest enclosing zone of a name, to be included
+     * in negative responses so clients can cache them (RFC 2308), or null if none is cached.
+     */
+    private ResourceRecord findEnclosingSOA(String hostName) {
+        for (ResourceRecord record : cache.findClosestEnclosing(hostName, RecordType.SOA))
+            return record;
+        return null;
+    }
+
+    private void send(SocketAddress client, ByteBuffer response) {
+        try {
+            channel.send(response, client);
+        } catch (IOException e) {
+            // The client will retry
+        }
+    }
+
+    /** Sends a response on a TCP connection, with its two-byte length prefix. Responses to
+     * queries pipelined on the same connection are written one at a time.
+     */
+    private void send(OutputStream out, ByteBuffer response) {
+        int length = response.remaining();
+        synchronized (out) {
+            try {
+                out.write(length >>> 8);
+                out.write(length);
+                out.write(response.array(), response.arrayOffset(), length);
+                out.flush();
+            } catch (IOException e) {
+                // The connection is closed by its reader
+            }
+        }
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    /** A query received on a TCP connection, waiting for a worker to answer it.
+     */
+    private final class StreamQuery implements Runnable {
+
+        private final byte[] query;
+        private final OutputStream out;
+        private final AtomicInteger outstanding;
+
+        private StreamQuery(byte[] query, OutputStream out, AtomicInteger outstanding) {
+            this.query = query;
+            this.out = out;
+            this.outstanding = outstanding;
+        }
+
+        @Override
+        public void run() {
+            try {
+                ByteBuffer response = answer(query, streamBuffers.get(), true);
+                if (response != null)
+                    send(out, response);
+            } finally {
+                outstanding.decrementAndGet();
+            }
+        }
+    }
+}
@@ -0,0 +1,169 @@
+import java.net.InetAddress;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+
+/** Cache of zone cuts learned from referrals. Each delegation links a zone (e.g., "com" or
+ * "example.com") to the names and addresses of its authoritative name servers, and expires
+ * with the NS records that announced it. Delegations are indexed by zone name, so the deepest
+ * known delegation for a host name is found by looking up each of its suffixes in turn, from
+ * the longest to the shortest, which takes one map lookup per label.
+ *
+ * <p>Expired delegations are ignored, and stay cached until replaced or evicted. Once the
+ * cache is full, every zone added evicts one, chosen by the clock algorithm: zones are queued
+ * in the order they were first added, and the zone at the head is evicted if its delegation
+ * has expired or has not been used since it last reached the head; otherwise it is moved to
+ * the tail. Delegations used on most lookups, such as those of top-level domains, are thus
+ * kept.</p>
+ */
+public class DelegationCache {
+
+    private static final int MAX_ZONES = 100000;
+    private static final int MAX_EVICTION_STEPS = 16;
+
+    private final ConcurrentMap<String, Delegation> zones = new ConcurrentHashMap<>();
+    private final Queue<String> clock = new ConcurrentLinkedQueue<>();
+
+    /** Records a delegation, replacing any previous delegation for the same zone. A delegation
+     * is only recorded if the zone is strictly below the zone whose servers announced it, so
+     * that no server can replace the delegation of its own zone, or of any zone above it.
+     *
+     * @param zone        Name of the delegated zone.
+     * @param parent      Name of the zone whose servers announced the delegation.
+     * @param nameServers Names of the zone's authoritative name servers.
+     * @param addresses   Known addresses of those name servers (e.g., from glue records).
+     * @param ttl         Number of seconds the delegation is valid for.
+     */
+    public void addDelegation(String zone, String parent, Collection<String> nameServers, Collection<InetAddress> addresses, long ttl) {
+        if (ttl <= 0 || nameServers.isEmpty() || !isBelowZone(zone, parent)) return;
+
+        String key = DNSNode.canonicalName(zone);
+        if (zones.put(key, new Delegation(key, nameServers, addresses,
+                CachedClock.currentTimeMillis() + ttl * 1000)) == null) {
+            clock.offer(key);
+            if (zones.size() > MAX_ZONES)
+                evict();
+        }
+    }
+
+    /** Adds an address for one of the name servers of a zone, typically after the address of a
+     * name server without glue has been resolved. Does nothing if the zone is not cached.
+     *
+     * @param zone    Name of the delegated zone.
+     * @param address Address of one of the zone's name servers.
+     */
+    public void addAddress(String zone, InetAddress address) {
+        zones.computeIfPresent(DNSNode.canonicalName(zone), (key, delegation) -> delegation.withAddress(address));
+    }
+
+    /** Returns the deepest unexpired delegation, with at least one known server address, for
+     * the host name itself or any of its ancestors.
+     *
+     * @param hostName Fully qualified domain name.
+     * @return The closest enclosing delegation, or null if none is known.
+     */
+    public Delegation findClosest(String hostName) {
+        String name = DNSNode.canonicalName(hostName);
+        while (true) {
+            Delegation delegation = zones.get(name);
+            if (delegation != null && delegation.isStillValid() && !delegation.getAddresses().isEmpty()) {
+                delegation.used = true;
+                return delegation;
+            }
+            if (name.isEmpty())
+                return null;
+            int dot = name.indexOf('.');
+            name = dot < 0 ? "" : name.substring(dot + 1);
+        }
+    }
+
+    /** Evicts one zone, moving at most MAX_EVICTION_STEPS recently used ones to the tail of the
+     * queue before evicting the last one examined regardless.
+     */
+    private void evict() {
+        for (int step = 1; ; step++) {
+            String zone = clock.poll();
+            if (zone == null)
+                return;
+            Delegation delegation = zones.get(zone);
+            if (delegation == null)
+                continue;
+            if (delegation.used && delegation.isStillValid() && step < MAX_EVICTION_STEPS) {
+                delegation.used = false;
+                clock.offer(zone);
+            } else if (zones.remove(zone, delegation))
+                return;
+            else
+                // Replaced in the meantime; keep it queued
+                clock.offer(zone);
+        }
+    }
+
+    /** Returns true if a host name is equal to, or a subdomain of, a zone.
+     *
+     * @param hostName Fully qualified domain name.
+     * @param zone     Name of a zone.
+     * @return true if the host name is within the zone.
+     */
+    public static boolean isInZone(String hostName, String zone) {
+        String name = DNSNode.canonicalName(hostName);
+        String suffix = DNSNode.canonicalName(zone);
+        if (suffix.isEmpty() || name.equals(suffix))
+            return true;
+        return name.endsWith(suffix) && name.charAt(name.length() - suffix.length() - 1) == '.';
+    }
+
+    /** Returns true if a host name is a subdomain of a zone, but not the zone itself.
+     *
+     * @param hostName Fully qualified domain name.
+     * @param zone     Name of a zone, or null.
+     * @return true if the host name is strictly below the zone; false if the zone is null.
+     */
+    public static boolean isBelowZone(String hostName, String zone) {
+        return zone != null && isInZone(hostName, zone) &&
+                !DNSNode.canonicalName(hostName).equals(DNSNode.canonicalName(zone));
+    }
+
+    /** Immutable delegation of a zone to a set of name servers.
+     */
+    public static final class Delegation {
+
+        private final String zone;
+        private final List<String> nameServers;
+        private final List<InetAddress> addresses;
+        private final long expirationTime;
+        private volatile boolean used;
+
+        private Delegation(String zone, Collection<String> nameServers, Collection<InetAddress> addresses, long expirationTime) {
+            this.zone = zone;
+            this.nameServers = List.copyOf(nameServers);
+            this.addresses = List.copyOf(new LinkedHashSet<>(addresses));
+            this.expirationTime = expirationTime;
+        }
+
+        public String getZone() {
+            return zone;
+        }
+
+        public List<String> getNameServers() {
+            return nameServers;
+        }
+
+        public List<InetAddress> getAddresses() {
+            return addresses;
+        }
+
+        public boolean isStillValid() {
+            return expirationTime > CachedClock.currentTimeMillis();
+        }
+
+        private Delegation withAddress(InetAddress address) {
+            if (addresses.contains(address))
+                return this;
+            List<InetAddress> updated = new ArrayList<>(addresses);
+            updated.add(address);
+            return new Delegation(zone, nameServers, updated, expirationTime);
+        }
+    }
+}
@@ -0,0 +1,166 @@
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/** Cache of responses already encoded in wire format, used by {@link DNSServer} to answer
+ * repeated queries without formatting, compressing and encoding the same records again. A
+ * cached response is a copy of the bytes first sent for a node; answering from it only takes
+ * copying the bytes and patching the transaction ID, the RD flag, the case of the question
+ * name and the remaining TTL of each record in place. Responses are cached without their OPT
+ * record, which is added back for queries that have one.
+ *
+ * <p>Each response remembers the set of records it was encoded from, as returned by
+ * {@link DNSCache#getCachedResults(DNSNode)}. The cache returns a new set whenever the records
+ * of a node change (a record is added, replaced or expires), so a response is only used while
+ * the set it was encoded from is still the one cached for its node; otherwise it is encoded
+ * again and replaced. Responses encoded from any other set (e.g., a copy of the valid records
+ * of a node) could never be used, and are not cached.</p>
+ *
+ * <p>Once the cache is full, every response added evicts one, chosen by the clock algorithm:
+ * nodes are queued in the order their first response was cached, and the node at the head is
+ * evicted if its response has expired or has not been used since it last reached the head;
+ * otherwise it is moved to the tail. Each addition thus takes a bounded number of steps.</p>
+ */
+public class EncodedAnswerCache {
+
+    private static final int MAX_ENTRIES = 100000;
+    private static final int MAX_EVICTION_STEPS = 16;
+    private static final int HEADER_SIZE = 12;
+
+    private final ConcurrentMap<DNSNode, EncodedAnswer> answers = new ConcurrentHashMap<>();
+    private final Queue<DNSNode> clock = new ConcurrentLinkedQueue<>();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /** Writes the cached response for a node into a buffer, if there is one encoded from the
+     * records currently cached for the node.
+     *
+     * @param node          Host name and record type in the query.
+     * @param records       The records currently cached for the node.
+     * @param query         The query being answered.
+     * @param questionEnd     Offset of the end of the question in the query.
+     * @param ednsPayloadSize Payload size advertised in an OPT record added to the response,
+     *                        or zero for no OPT record.
+     * @param buffer          Buffer the response is written to; its capacity is the maximum
+     *                        size of the response.
+     * @return true if the response was written, with the response between position zero and
+     *         the limit of the buffer, or false if no matching response is cached, or it does
+     *         not fit in the buffer.
+     */
+    public boolean write(DNSNode node, Set<ResourceRecord> records, byte[] query, int questionEnd,
+                         int ednsPayloadSize, ByteBuffer buffer) {
+        EncodedAnswer answer = answers.get(node);
+        if (answer == null || answer.records != records || answer.questionEnd != questionEnd ||
+                answer.message.length + (ednsPayloadSize > 0 ? DNSResponseEncoder.OPT_SIZE : 0) > buffer.capacity()) {
+            misses.increment();
+            return false;
+        }
+
+        buffer.clear();
+        buffer.put(answer.message);
+        // Transaction ID, RD flag and question as sent by the client
+        buffer.put(0, query, 0, 2);
+        buffer.put(2, (byte) ((answer.message[2] & ~0x01) | (query[2] & 0x01)));
+        buffer.put(HEADER_SIZE, query, HEADER_SIZE, questionEnd - HEADER_SIZE);
+
+        long now = CachedClock.currentTimeMillis();
+        for (int i = 0; i < answer.ttlOffsets.length; i++)
+            buffer.putInt(answer.ttlOffsets[i], (int) Math.max(0, (answer.expirations[i] - now + 999) / 1000));
+        if (ednsPayloadSize > 0) {
+            DNSResponseEncoder.writeOpt(buffer, ednsPayloadSize);
+            buffer.putShort(10, (short) 1);
+        }
+        buffer.flip();
+        answer.used = true;
+        hits.increment();
+        return true;
+    }
+
+    /** Caches an encoded response for a node, evicting another one if the cache is full.
+     *
+     * @param node        Host name and record type in the query.
+     * @param records     The records the response was encoded from, which must be the set
+     *                    cached for the node (see {@link DNSCache#isCached}).
+     * @param response    The response, from position zero to the limit; it is copied.
+     * @param questionEnd Offset of the end of the question in the response.
+     * @param ttlOffsets  Offsets of the TTL fields of the records in the answer section.
+     * @param expirations Expiration times of the records in the answer section.
+     */
+    public void put(DNSNode node, Set<ResourceRecord> records, ByteBuffer response, int questionEnd,
+                    int[] ttlOffsets, long[] expirations) {
+        // The only additional record the server writes is the OPT record, at the end
+        boolean opt = response.getShort(10) != 0;
+        byte[] message = new byte[response.remaining() - (opt ? DNSResponseEncoder.OPT_SIZE : 0)];
+        response.get(0, message);
+        message[10] = 0;
+        message[11] = 0;
+        if (answers.put(node, new EncodedAnswer(records, message, questionEnd, ttlOffsets, expirations)) == null) {
+            clock.offer(node);
+            if (answers.size() > MAX_ENTRIES)
+                evict();
+        }
+    }
+
+    /** Evicts one response, moving at most MAX_EVICTION_STEPS recently used ones to the tail of
+     * the queue before evicting the last one examined regardless.
+     */
+    private void evict() {
+        long now = CachedClock.currentTimeMillis();
+        for (int step = 1; ; step++) {
+            DNSNode node = clock.poll();
+            if (node == null)
+                return;
+            EncodedAnswer answer = answers.get(node);
+            if (answer == null)
+                continue;
+            if (answer.used && answer.earliestExpiration > now && step < MAX_EVICTION_STEPS) {
+                answer.used = false;
+                clock.offer(node);
+            } else if (answers.remove(node, answer))
+                return;
+            else
+                // Replaced in the meantime; keep it queued
+                clock.offer(node);
+        }
+    }
+
+    public int size() {
+        return answers.size();
+    }
+
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    private static final class EncodedAnswer {
+
+        private final Set<ResourceRecord> records;
+        private final byte[] message;
+        private final int questionEnd;
+        private final int[] ttlOffsets;
+        private final long[] expirations;
+        private final long earliestExpiration;
+        private volatile boolean used;
+
+        private EncodedAnswer(Set<ResourceRecord> records, byte[] message, int questionEnd,
+                              int[] ttlOffsets, long[] expirations) {
+            this.records = records;
+            this.message = message;
+            this.questionEnd = questionEnd;
+            this.ttlOffsets = ttlOffsets;
+            this.expirations = expirations;
+            long earliest = Long.MAX_VALUE;
+            for (long expiration : expirations)
+                earliest = Math.min(earliest, expiration);
+            this.earliestExpiration = earliest;
+        }
+    }
+}
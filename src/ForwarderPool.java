@@ -0,0 +1,242 @@
+import java.io.Closeable;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/** Upstream recursive resolvers used in forwarding mode (see
+ * {@link Resolver#setForwarders(ForwarderPool)}). Instead of iterating from the root, the
+ * resolver asks one of these servers to resolve each query on its behalf.
+ *
+ * <p>Queries are balanced across the upstreams according to a {@link Policy}: either the
+ * fastest upstream first, by smoothed round-trip time, or the upstream with the fewest
+ * queries in progress first. Either way, the resolver moves on to the next upstream when the
+ * first one is late, fails or times out.</p>
+ *
+ * <p>Upstreams are health-checked passively, by the outcome of the queries sent to them, and
+ * actively, by a probe (a query for the NS records of the root) sent to each of them every few
+ * seconds. An upstream that fails several times in a row is marked down and left out of the
+ * rotation until it answers a probe again. If every upstream is down, all of them are used
+ * anyway, since one of them may have recovered since it was last probed.</p>
+ */
+public class ForwarderPool implements Closeable {
+
+    private static final int DEFAULT_DNS_PORT = 53;
+    private static final int FLAG_RECURSION_DESIRED = 0x0100;
+    private static final int FAILURES_BEFORE_DOWN = 3;
+    private static final long PROBE_INTERVAL = 5000;
+    private static final long PROBE_TIMEOUT = 2000;
+    private static final DNSNode PROBE = new DNSNode("", RecordType.NS);
+
+    /** Order in which upstreams are tried.
+     */
+    public enum Policy {
+        /** Fastest upstream first, by smoothed round-trip time. */
+        RTT,
+        /** Upstream with the fewest queries in progress first, then the fastest. */
+        OUTSTANDING
+    }
+
+    private final List<Upstream> upstreams;
+    private final Map<InetAddress, Upstream> byAddress = new HashMap<>();
+    private final InfrastructureCache infrastructure;
+    private final UdpTransport transport;
+    private final ScheduledExecutorService prober;
+    private volatile Policy policy;
+
+    /** Creates a pool of upstreams and starts probing them in the background.
+     *
+     * @param servers        Addresses of the upstream recursive resolvers.
+     * @param policy         Order in which upstreams are tried.
+     * @param infrastructure Round-trip statistics of the upstreams, shared with the resolver.
+     * @param transport      Transport used to probe the upstreams.
+     */
+    public ForwarderPool(List<InetAddress> servers, Policy policy, InfrastructureCache infrastructure,
+                         UdpTransport transport) {
+        List<Upstream> list = new ArrayList<>();
+        for (InetAddress server : new LinkedHashSet<>(servers)) {
+            Upstream upstream = new Upstream(server);
+            list.add(upstream);
+            byAddress.put(server, upstream);
+        }
+        this.upstreams = List.copyOf(list);
+        this.policy = policy;
+        this.infrastructure = infrastructure;
+        this.transport = transport;
+
+        prober = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "dns-forwarder-probe");
+            thread.setDaemon(true);
+            return thread;
+        });
+        prober.scheduleWithFixedDelay(this::probe, 0, PROBE_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    public List<InetAddress> getServers() {
+        List<InetAddress> servers = new ArrayList<>();
+        for (Upstream upstream : upstreams)
+            servers.add(upstream.address);
+        return servers;
+    }
+
+    public Policy getPolicy() {
+        return policy;
+    }
+
+    public void setPolicy(Policy policy) {
+        this.policy = policy;
+    }
+
+    /** Returns the upstreams a query should be sent to, in the order they should be tried.
+     * Upstreams that are down are left out, unless all of them are.
+     *
+     * @return Addresses of the upstreams, first choice first.
+     */
+    public List<InetAddress> select() {
+        List<InetAddress> healthy = new ArrayList<>(upstreams.size());
+        for (Upstream upstream : upstreams)
+            if (upstream.healthy)
+                healthy.add(upstream.address);
+        List<InetAddress> ordered = infrastructure.order(healthy.isEmpty() ? getServers() : healthy);
+        if (policy == Policy.OUTSTANDING) {
+            // Stable sort: upstreams with as many queries in progress stay ordered by RTT
+            ordered.sort(Comparator.comparingInt(server -> byAddress.get(server).outstanding.get()));
+        }
+        return ordered;
+    }
+
+    /** Encodes a query for a node with the recursion desired flag set. See
+     * {@link DNSQueryEncoder#encode(DNSNode, int, int)}.
+     */
+    static ByteBuffer encode(DNSNode node, int payloadSize) {
+        return DNSQueryEncoder.encode(node, FLAG_RECURSION_DESIRED, payloadSize);
+    }
+
+    /** Records that a query was sent to an upstream. Must be followed by a call to
+     * {@link #recordCompleted(InetAddress)} once the query completes or times out.
+     *
+     * @param server Address of the upstream.
+     */
+    public void recordSent(InetAddress server) {
+        Upstream upstream = byAddress.get(server);
+        if (upstream != null)
+            upstream.outstanding.incrementAndGet();
+    }
+
+    /** Records that a query to an upstream is no longer waiting for a response.
+     *
+     * @param server Address of the upstream.
+     */
+    public void recordCompleted(InetAddress server) {
+        Upstream upstream = byAddress.get(server);
+        if (upstream != null)
+            upstream.outstanding.decrementAndGet();
+    }
+
+    /** Records whether an upstream resolved a query. An upstream that keeps failing is marked
+     * down; a usable response marks it up again. Failures of queries sent before the last
+     * usable response are ignored, so that queries that were lost while an upstream was down
+     * do not mark it down again once it has recovered.
+     *
+     * @param server  Address of the upstream.
+     * @param success true if the upstream answered the query, false if it timed out, sent a
+     *                malformed response or could not resolve the query (e.g., SERVFAIL).
+     * @param sent    Time the query was sent, as given by {@link System#nanoTime()}.
+     */
+    public void recordOutcome(InetAddress server, boolean success, long sent) {
+        Upstream upstream = byAddress.get(server);
+        if (upstream != null)
+            recordOutcome(upstream, success, sent);
+    }
+
+    /** Returns false if an upstream is currently left out of the rotation.
+     *
+     * @param server Address of the upstream.
+     * @return true if the upstream is up, or not part of this pool.
+     */
+    public boolean isHealthy(InetAddress server) {
+        Upstream upstream = byAddress.get(server);
+        return upstream == null || upstream.healthy;
+    }
+
+    /** Returns the number of queries currently waiting for a response from an upstream.
+     *
+     * @param server Address of the upstream.
+     * @return Number of outstanding queries.
+     */
+    public int getOutstandingQueries(InetAddress server) {
+        Upstream upstream = byAddress.get(server);
+        return upstream == null ? 0 : upstream.outstanding.get();
+    }
+
+    /** Perform a specific action for each upstream, in configuration order.
+     *
+     * @param consumer Action to be performed for each upstream address.
+     */
+    public void forEachServer(Consumer<InetAddress> consumer) {
+        for (Upstream upstream : upstreams)
+            consumer.accept(upstream.address);
+    }
+
+    /** Stops probing the upstreams.
+     */
+    @Override
+    public void close() {
+        prober.shutdownNow();
+    }
+
+    private void recordOutcome(Upstream upstream, boolean success, long sent) {
+        if (success) {
+            upstream.failures = 0;
+            // A late response to an older query does not move the last success back
+            if (sent - upstream.lastSuccess > 0)
+                upstream.lastSuccess = sent;
+            upstream.healthy = true;
+        } else if (sent - upstream.lastSuccess > 0 && ++upstream.failures >= FAILURES_BEFORE_DOWN)
+            upstream.healthy = false;
+    }
+
+    /** Sends a probe to every upstream. Probes feed the round-trip statistics of the
+     * upstreams as well as their health, so idle upstreams are ranked on current data.
+     */
+    private void probe() {
+        for (Upstream upstream : upstreams) {
+            InetAddress server = upstream.address;
+            infrastructure.recordQuery(server);
+            long sent = System.nanoTime();
+            transport.query(new InetSocketAddress(server, DEFAULT_DNS_PORT), encode(PROBE, 0), PROBE, PROBE_TIMEOUT)
+                    .whenComplete((response, failure) -> {
+                        if (failure != null) {
+                            infrastructure.recordTimeout(server);
+                            recordOutcome(upstream, false, sent);
+                            return;
+                        }
+                        infrastructure.recordResponse(server, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - sent));
+                        // Any response but a server failure or a refusal shows the upstream resolves queries
+                        int rcode = response.length > 3 ? response[3] & 0x0F : -1;
+                        recordOutcome(upstream, rcode == 0 || rcode == 3, sent);
+                    });
+        }
+    }
+
+    /** Health and load of a single upstream. Updates may race with each other; a lost update
+     * at worst delays marking the upstream down by one failure.
+     */
+    private static final class Upstream {
+
+        private final InetAddress address;
+        private final AtomicInteger outstanding = new AtomicInteger();
+        private volatile int failures = 0;
+        private volatile long lastSuccess = System.nanoTime();
+        private volatile boolean healthy = true;
+
+        private Upstream(InetAddress address) {
+            this.address = address;
+        }
+    }
+}
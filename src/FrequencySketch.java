@@ -0,0 +1,105 @@
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/** Approximate, aging access frequency of cache keys (a TinyLFU count-min sketch). Each key is
+ * mapped to four 4-bit counters, and its estimated frequency is the smallest of them. Once the
+ * number of recorded accesses reaches a sample size proportional to the table, every counter
+ * is halved, so the sketch favours keys that have been popular recently. Counters are updated
+ * with compare-and-set, and reading or recording a frequency never blocks.
+ */
+class FrequencySketch {
+
+    private static final long[] SEED = {
+            0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L };
+    private static final long RESET_MASK = 0x7777777777777777L;
+    private static final int SAMPLE_FACTOR = 10;
+
+    private final AtomicLongArray table;
+    private final int tableMask;
+    private final int sampleSize;
+    private final AtomicInteger size = new AtomicInteger();
+    private final AtomicBoolean resetting = new AtomicBoolean();
+
+    /** Creates a sketch sized for a particular number of keys.
+     *
+     * @param expectedKeys Number of distinct keys the cache is expected to hold.
+     */
+    FrequencySketch(long expectedKeys) {
+        int length = Integer.highestOneBit((int) Math.max(16, Math.min(expectedKeys, 1 << 30)) - 1) << 1;
+        table = new AtomicLongArray(length);
+        tableMask = length - 1;
+        sampleSize = (int) Math.min((long) SAMPLE_FACTOR * length, Integer.MAX_VALUE);
+    }
+
+    /** Returns the estimated number of recent accesses to a key, between 0 and 15.
+     *
+     * @param key Key whose frequency is requested.
+     * @return The estimated frequency of the key.
+     */
+    int frequency(Object key) {
+        int hash = spread(key.hashCode());
+        int start = (hash & 3) << 2;
+        int frequency = 15;
+        for (int i = 0; i < 4; i++) {
+            int index = indexOf(hash, i);
+            int count = (int) ((table.get(index) >>> ((start + i) << 2)) & 0xFL);
+            frequency = Math.min(frequency, count);
+        }
+        return frequency;
+    }
+
+    /** Records an access to a key, ageing all counters if the sample size has been reached.
+     *
+     * @param key Key that was accessed.
+     */
+    void increment(Object key) {
+        int hash = spread(key.hashCode());
+        int start = (hash & 3) << 2;
+        boolean added = false;
+        for (int i = 0; i < 4; i++)
+            added |= incrementAt(indexOf(hash, i), start + i);
+
+        if (added && size.incrementAndGet() >= sampleSize)
+            reset();
+    }
+
+    private boolean incrementAt(int index, int counter) {
+        int offset = counter << 2;
+        long mask = 0xFL << offset;
+        while (true) {
+            long current = table.get(index);
+            if ((current & mask) == mask)
+                return false;
+            if (table.compareAndSet(index, current, current + (1L << offset)))
+                return true;
+        }
+    }
+
+    /** Halves every counter. Only one thread performs the reset; accesses recorded by other
+     * threads while it runs may be lost, which only affects the accuracy of the estimate.
+     */
+    private void reset() {
+        if (!resetting.compareAndSet(false, true))
+            return;
+        try {
+            for (int i = 0; i < table.length(); i++)
+                table.updateAndGet(i, value -> (value >>> 1) & RESET_MASK);
+            size.set(size.get() / 2);
+        } finally {
+            resetting.set(false);
+        }
+    }
+
+    private int indexOf(int hash, int i) {
+        long result = (hash + SEED[i]) * SEED[i];
+        result += result >>> 32;
+        return ((int) result) & tableMask;
+    }
+
+    private static int spread(int x) {
+        x = ((x >>> 16) ^ x) * 0x45d9f3b;
+        x = ((x >>> 16) ^ x) * 0x45d9f3b;
+        return (x >>> 16) ^ x;
+    }
+}
@@ -0,0 +1,135 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/** Distribution of non-negative values, such as latencies or counts, in logarithmic buckets.
+ * Values below 4 have a bucket each; above that, every power of two is split into 4 buckets
+ * of equal width, so a value is known to within 25% of its magnitude whatever its scale.
+ * Values above the maximum given when creating the histogram are counted in its last bucket.
+ *
+ * <p>Recording a value never blocks: it increments one bucket and a sum, without any lock, so
+ * histograms may be updated from any number of threads on every lookup. Values are read from
+ * a {@link Snapshot}, which may miss values recorded while it is being taken.</p>
+ */
+public class Histogram {
+
+    private static final int SUB_BUCKET_BITS = 2;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    private final AtomicLongArray counts;
+    private final LongAdder sum = new LongAdder();
+
+    /** Creates an empty histogram.
+     *
+     * @param maximum Largest value told apart from larger ones.
+     */
+    public Histogram(long maximum) {
+        // The bucket of the maximum is followed by one for all larger values
+        counts = new AtomicLongArray(bucketIndex(Math.max(0, Math.min(maximum, Long.MAX_VALUE >> 1))) + 2);
+    }
+
+    /** Records a value. Negative values are recorded as zero.
+     *
+     * @param value Value to be recorded.
+     */
+    public void record(long value) {
+        value = Math.max(0, value);
+        counts.getAndIncrement(Math.min(bucketIndex(value), counts.length() - 1));
+        sum.add(value);
+    }
+
+    /** Returns the values recorded so far.
+     */
+    public Snapshot snapshot() {
+        long[] copy = new long[counts.length()];
+        for (int i = 0; i < copy.length; i++)
+            copy[i] = counts.get(i);
+        return new Snapshot(copy, sum.sum());
+    }
+
+    private static int bucketIndex(long value) {
+        if (value < SUB_BUCKETS)
+            return (int) value;
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    private static long lowerBound(int index) {
+        if (index < SUB_BUCKETS)
+            return index;
+        int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        return (long) (SUB_BUCKETS + index % SUB_BUCKETS) << (exponent - SUB_BUCKET_BITS);
+    }
+
+    /** Values recorded in a histogram up to a point in time.
+     */
+    public static final class Snapshot {
+
+        private final long[] counts;
+        private final long sum;
+        private final long count;
+
+        private Snapshot(long[] counts, long sum) {
+            this.counts = counts;
+            this.sum = sum;
+            long total = 0;
+            for (long bucketCount : counts)
+                total += bucketCount;
+            this.count = total;
+        }
+
+        /** Returns the number of values recorded.
+         */
+        public long getCount() {
+            return count;
+        }
+
+        /** Returns the mean of the values recorded, or zero if there is none.
+         */
+        public double getMean() {
+            return count == 0 ? 0 : (double) sum / count;
+        }
+
+        /** Returns an upper bound of a percentile of the values recorded: the largest value of
+         * the bucket the percentile falls in, or the smallest value of the last bucket if it
+         * falls there, as that bucket has no upper bound.
+         *
+         * @param percentile Percentile, between 0 and 100.
+         * @return The estimated percentile, or zero if no value was recorded.
+         */
+        public long getPercentile(double percentile) {
+            if (count == 0)
+                return 0;
+            long rank = Math.max(1, (long) Math.ceil(count * percentile / 100));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank)
+                    return getUpperBound(i);
+            }
+            return getUpperBound(counts.length - 1);
+        }
+
+        /** Returns the number of buckets of the histogram.
+         */
+        public int getBucketCount() {
+            return counts.length;
+        }
+
+        /** Returns the number of values recorded in a bucket.
+         *
+         * @param index Index of the bucket, from 0 to {@link #getBucketCount()} - 1.
+         */
+        public long getCount(int index) {
+            return counts[index];
+        }
+
+        /** Returns the largest value counted in a bucket, or the smallest for the last bucket.
+         *
+         * @param index Index of the bucket, from 0 to {@link #getBucketCount()} - 1.
+         */
+        public long getUpperBound(int index) {
+            return index == counts.length - 1 ? lowerBound(index) : lowerBound(index + 1) - 1;
+        }
+    }
+}
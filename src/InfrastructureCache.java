@@ -0,0 +1,248 @@
+import java.net.InetAddress;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.BiConsumer;
+
+/** Per-server statistics used to choose which name server to query. For each server address,
+ * keeps a smoothed round-trip time (SRTT) and its mean deviation (RTTVAR), updated on every
+ * response as in TCP (RFC 6298), the distribution of its round-trip times, and the number of
+ * queries sent, answered and timed out. A server that times out has its SRTT doubled, so it is
+ * avoided until it answers again. Servers that have never been queried are assumed to be
+ * moderately fast, so they are tried before servers known to be slow.
+ *
+ * <p>Once statistics are kept for MAX_SERVERS servers, every new server evicts one, chosen by
+ * the clock algorithm: servers are queued in the order they were first seen, and the server at
+ * the head is evicted if it has not been queried or heard from since it last reached the head;
+ * otherwise it is moved to the tail. Servers in regular use, such as the root and top-level
+ * domain servers, thus keep their statistics.</p>
+ */
+public class InfrastructureCache {
+
+    private static final int UNKNOWN_RTT = 200;
+    private static final int UNKNOWN_RTT_JITTER = 50;
+    private static final int INITIAL_RTO = 1000;
+    private static final int MIN_RTO = 200;
+    private static final int MAX_RTO = 5000;
+    private static final int MAX_RTT = 60000;
+    private static final int MAX_SERVERS = 10000;
+    private static final int MAX_EVICTION_STEPS = 16;
+
+    private final ConcurrentMap<InetAddress, ServerStatistics> servers = new ConcurrentHashMap<>();
+    private final Queue<InetAddress> clock = new ConcurrentLinkedQueue<>();
+
+    /** Records a response received from a server.
+     *
+     * @param server Address of the server.
+     * @param rtt    Time between sending the query and receiving the response, in milliseconds.
+     */
+    public void recordResponse(InetAddress server, long rtt) {
+        getStatistics(server).recordResponse(Math.max(1, rtt));
+    }
+
+    /** Records a query to a server that was not answered in time.
+     *
+     * @param server Address of the server.
+     */
+    public void recordTimeout(InetAddress server) {
+        getStatistics(server).recordTimeout();
+    }
+
+    /** Records a query sent to a server.
+     *
+     * @param server Address of the server.
+     */
+    public void recordQuery(InetAddress server) {
+        getStatistics(server).queries++;
+    }
+
+    /** Records that a server rejected a query with an EDNS0 OPT record, so later queries to it
+     * are sent without one.
+     *
+     * @param server Address of the server.
+     */
+    public void recordEdnsUnsupported(InetAddress server) {
+        getStatistics(server).ednsUnsupported = true;
+    }
+
+    /** Returns false if a server is known to reject queries with an EDNS0 OPT record.
+     *
+     * @param server Address of the server.
+     * @return true if queries to the server may use EDNS0.
+     */
+    public boolean isEdnsSupported(InetAddress server) {
+        ServerStatistics statistics = servers.get(server);
+        return statistics == null || !statistics.ednsUnsupported;
+    }
+
+    /** Returns the smoothed round-trip time of a server, or an estimate if the server has never
+     * answered.
+     *
+     * @param server Address of the server.
+     * @return The expected round-trip time, in milliseconds.
+     */
+    public long getSmoothedRTT(InetAddress server) {
+        ServerStatistics statistics = servers.get(server);
+        return statistics == null ? UNKNOWN_RTT : statistics.srtt;
+    }
+
+    /** Returns the round-trip time above which a response from a server is considered late,
+     * computed as SRTT + 4 * RTTVAR.
+     *
+     * @param server Address of the server.
+     * @return The round-trip time a response is expected within, in milliseconds.
+     */
+    public long getExpectedRTT(InetAddress server) {
+        ServerStatistics statistics = servers.get(server);
+        return statistics == null ? 2 * UNKNOWN_RTT : statistics.srtt + 4 * statistics.rttvar;
+    }
+
+    /** Returns the time after which a query to a server is considered lost, computed as
+     * SRTT + 4 * RTTVAR and clamped between 200 ms and 5 s. Servers that have never answered
+     * get one second, as in RFC 6298. Since the SRTT of a server doubles every time it times
+     * out, the timeout of an unresponsive server backs off exponentially across lookups.
+     *
+     * @param server Address of the server.
+     * @return The retransmission timeout of the server, in milliseconds.
+     */
+    public long getRetransmissionTimeout(InetAddress server) {
+        ServerStatistics statistics = servers.get(server);
+        if (statistics == null || !statistics.measured)
+            return statistics == null ? INITIAL_RTO : Math.min(MAX_RTO, Math.max(INITIAL_RTO, statistics.srtt));
+        return Math.min(MAX_RTO, Math.max(MIN_RTO, statistics.srtt + 4 * statistics.rttvar));
+    }
+
+    /** Orders a list of server addresses from the fastest to the slowest expected server.
+     * Duplicates are removed. Servers with similar expected round-trip times are ordered
+     * randomly, so the load is spread among them.
+     *
+     * @param candidates Addresses of the servers to choose from.
+     * @return A new list with the same addresses, fastest first.
+     */
+    public List<InetAddress> order(Collection<InetAddress> candidates) {
+        Map<InetAddress, Long> ranks = new LinkedHashMap<>();
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (InetAddress candidate : candidates) {
+            ServerStatistics statistics = servers.get(candidate);
+            long rank = statistics == null ? UNKNOWN_RTT + random.nextInt(UNKNOWN_RTT_JITTER) :
+                    statistics.srtt + random.nextInt(1 + (int) Math.min(statistics.rttvar, UNKNOWN_RTT_JITTER));
+            ranks.putIfAbsent(candidate, rank);
+        }
+        List<InetAddress> ordered = new ArrayList<>(ranks.keySet());
+        ordered.sort(Comparator.comparing(ranks::get));
+        return ordered;
+    }
+
+    /** Perform a specific action for each known server and its statistics. Servers are visited
+     * from the fastest to the slowest.
+     *
+     * @param consumer Action to be performed for each server.
+     */
+    public void forEachServer(BiConsumer<InetAddress, ServerStatistics> consumer) {
+        List<Map.Entry<InetAddress, ServerStatistics>> entries = new ArrayList<>(servers.entrySet());
+        entries.sort(Comparator.comparingLong(entry -> entry.getValue().srtt));
+        for (Map.Entry<InetAddress, ServerStatistics> entry : entries)
+            consumer.accept(entry.getKey(), entry.getValue());
+    }
+
+    private ServerStatistics getStatistics(InetAddress server) {
+        ServerStatistics statistics = servers.get(server);
+        if (statistics != null) {
+            statistics.used = true;
+            return statistics;
+        }
+        // A new server is only marked as used once it is seen again
+        ServerStatistics created = new ServerStatistics();
+        statistics = servers.putIfAbsent(server, created);
+        if (statistics != null)
+            return statistics;
+        clock.offer(server);
+        if (servers.size() > MAX_SERVERS)
+            evict();
+        return created;
+    }
+
+    /** Evicts the statistics of one server, moving at most MAX_EVICTION_STEPS recently used
+     * ones to the tail of the queue before evicting the last one examined regardless.
+     */
+    private void evict() {
+        for (int step = 1; ; step++) {
+            InetAddress server = clock.poll();
+            if (server == null)
+                return;
+            ServerStatistics statistics = servers.get(server);
+            if (statistics == null)
+                continue;
+            if (statistics.used && step < MAX_EVICTION_STEPS) {
+                statistics.used = false;
+                clock.offer(server);
+            } else {
+                servers.remove(server, statistics);
+                return;
+            }
+        }
+    }
+
+    /** Round-trip statistics of a single server. Updates may race with each other; a lost
+     * update only makes the estimate slightly less accurate.
+     */
+    public static final class ServerStatistics {
+
+        private volatile long srtt = UNKNOWN_RTT;
+        private volatile long rttvar = UNKNOWN_RTT / 2;
+        private volatile boolean measured = false;
+        private volatile long queries;
+        private volatile long responses;
+        private volatile long timeouts;
+        private volatile boolean ednsUnsupported = false;
+        private volatile boolean used;
+        private final Histogram roundTripTimes = new Histogram(MAX_RTT);
+
+        private void recordResponse(long rtt) {
+            if (!measured) {
+                srtt = rtt;
+                rttvar = rtt / 2;
+                measured = true;
+            } else {
+                rttvar = (3 * rttvar + Math.abs(srtt - rtt)) / 4;
+                srtt = (7 * srtt + rtt) / 8;
+            }
+            roundTripTimes.record(rtt);
+            responses++;
+        }
+
+        private void recordTimeout() {
+            srtt = Math.min(MAX_RTT, 2 * srtt);
+            timeouts++;
+        }
+
+        public long getSmoothedRTT() {
+            return srtt;
+        }
+
+        public long getRTTVariation() {
+            return rttvar;
+        }
+
+        public long getQueries() {
+            return queries;
+        }
+
+        public long getResponses() {
+            return responses;
+        }
+
+        public long getTimeouts() {
+            return timeouts;
+        }
+
+        /** Returns the round-trip times of the responses received from the server, in
+         * milliseconds.
+         */
+        public Histogram.Snapshot getRoundTripTimes() {
+            return roundTripTimes.snapshot();
+        }
+    }
+}
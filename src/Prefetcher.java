@@ -0,0 +1,78 @@
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.LongAdder;
+
+/** Refreshes popular cached records in the background before they expire, so that clients
+ * asking for them keep getting answers from the cache instead of waiting for a resolution once
+ * every TTL. Nodes are offered by the {@link DNSCache} (see
+ * {@link DNSCache#setRefreshAhead(java.util.function.Function, double, int)}) and resolved
+ * again with {@link Resolver#refresh(DNSNode)}.
+ *
+ * <p>Only a few refreshes run at a time, on low-priority threads. A node offered while all of
+ * them are busy is declined rather than queued, so prefetching never delays queries from
+ * clients; the cache offers it again on a later hit.</p>
+ */
+public class Prefetcher {
+
+    private final Resolver resolver;
+    private final Semaphore permits;
+    private final ExecutorService executor;
+
+    private final LongAdder startedRefreshes = new LongAdder();
+    private final LongAdder declinedRefreshes = new LongAdder();
+
+    /** Creates a prefetcher.
+     *
+     * @param resolver      Resolver used to refresh nodes.
+     * @param maxConcurrent Maximum number of nodes refreshed at the same time.
+     */
+    public Prefetcher(Resolver resolver, int maxConcurrent) {
+        this.resolver = resolver;
+        this.permits = new Semaphore(maxConcurrent);
+        this.executor = Executors.newFixedThreadPool(maxConcurrent, runnable -> {
+            Thread thread = new Thread(runnable, "dns-prefetch");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        });
+    }
+
+    /** Starts refreshing a node in the background, unless the maximum number of refreshes is
+     * already running. Does not block.
+     *
+     * @param node Host and record type to be refreshed.
+     * @return A future completed with the records found once the refresh is over, or
+     *         exceptionally if it failed, or null if the refresh was declined. If it fails, the
+     *         current records stay cached until they expire.
+     */
+    public CompletableFuture<Set<ResourceRecord>> prefetch(DNSNode node) {
+        if (!permits.tryAcquire()) {
+            declinedRefreshes.increment();
+            return null;
+        }
+        startedRefreshes.increment();
+        try {
+            return CompletableFuture.supplyAsync(() -> resolver.refresh(node), executor)
+                    .whenComplete((records, error) -> permits.release());
+        } catch (RejectedExecutionException e) {
+            permits.release();
+            return null;
+        }
+    }
+
+    public long getStartedRefreshCount() {
+        return startedRefreshes.sum();
+    }
+
+    public long getDeclinedRefreshCount() {
+        return declinedRefreshes.sum();
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+}
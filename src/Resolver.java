@@ -0,0 +1,1164 @@
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/** Iterative or forwarding DNS resolver. A single resolver instance may be shared by any
+ * number of threads: all the state needed while resolving a name (the parser for the current
+ * response and the CNAME indirection level) is kept in a per-query {@link Lookup} object, so
+ * concurrent calls to {@link #resolve(DNSNode)} do not interfere with each other. Queries are sent
+ * through a shared {@link UdpTransport} with an EDNS0 OPT record, and repeated over a shared
+ * {@link TcpTransport} if their response is truncated; results are stored in (and retrieved from) a
+ * shared {@link DNSCache}.
+ *
+ * <p>Zone cuts learned from referrals are kept in a {@link DelegationCache}, and resolution
+ * starts at the name servers of the deepest cached zone enclosing the name being resolved,
+ * rather than at the root server, whenever possible.</p>
+ *
+ * <p>Round-trip times of every server queried are kept in an {@link InfrastructureCache}. When
+ * several servers can answer a query, the fastest one is queried first, and the query is sent
+ * to the next one as well if the first is slower than usual to respond. Query timeouts are
+ * derived from the same statistics, unanswered queries are retried with exponential backoff,
+ * and every lookup is bounded by an overall deadline.</p>
+ *
+ * <p>Identical queries are coalesced: if a node is requested while another lookup is already
+ * resolving it (whether as the name being looked up or as the address of a name server), the
+ * second lookup waits for the first one to finish and shares its result instead of querying
+ * the servers again.</p>
+ *
+ * <p>If the cache keeps expired records (see {@link DNSCache#setStaleWindow(long)}), a node
+ * whose records expired is answered with them when it cannot be resolved again within a short
+ * time, or while another lookup is still trying to resolve it (RFC 8767). The resolution
+ * carries on in the background, and replaces the stale records once it succeeds.</p>
+ *
+ * <p>In forwarding mode (see {@link #setForwarders(ForwarderPool)}), queries are not resolved
+ * iteratively: each one is sent, with the recursion desired flag set, to the upstream
+ * recursive resolvers of a {@link ForwarderPool}, which picks the order they are tried in and
+ * keeps track of their health. Hedging, retries and timeouts work as in iterative mode, and
+ * answers are cached as usual. Referrals from an upstream that does not offer recursion are
+ * not followed; the next upstream is tried instead.</p>
+ */
+public class Resolver {
+
+    private static final int DEFAULT_DNS_PORT = 53;
+    private static final int MAX_INDIRECTION_LEVEL = 10;
+    private static final int MAX_QUERY_TIMEOUT = 5000;
+    private static final int MAX_ATTEMPTS = 3;
+    private static final int DEFAULT_LOOKUP_TIMEOUT = 10000;
+    private static final int DEFAULT_STALE_ANSWER_TIMEOUT = 1800;
+    private static final int DEFAULT_EDNS_PAYLOAD_SIZE = 1232;
+    private static final int TYPE_OPT = 41;
+    private static final int RCODE_FORMERR = 1;
+    private static final RecordType[] ADDRESS_TYPES = { RecordType.A, RecordType.AAAA };
+    private static final long MAX_RECORDED_LATENCY = TimeUnit.SECONDS.toMicros(60);
+    private static final int MAX_RECORDED_REFERRALS = 32;
+    private static final int MAX_SUB_LOOKUP_THREADS = 64;
+    private static final long SUB_LOOKUP_KEEP_ALIVE = 60;
+
+    private final DNSCache cache;
+    private final DelegationCache delegations = new DelegationCache();
+    private final InfrastructureCache infrastructure = new InfrastructureCache();
+    private final UdpTransport transport;
+    private final TcpTransport tcpTransport;
+    private volatile InetAddress rootServer;
+    private volatile ForwarderPool forwarders;
+    private volatile boolean verboseTracing = false;
+    private volatile long lookupTimeout = DEFAULT_LOOKUP_TIMEOUT;
+    private volatile long staleAnswerTimeout = DEFAULT_STALE_ANSWER_TIMEOUT;
+    private volatile int ednsPayloadSize = DEFAULT_EDNS_PAYLOAD_SIZE;
+
+    private final ConcurrentMap<DNSNode, CompletableFuture<Set<ResourceRecord>>> inFlight = new ConcurrentHashMap<>();
+    private final LongAdder upstreamResolutions = new LongAdder();
+    private final LongAdder coalescedQueries = new LongAdder();
+    private final LongAdder hedgedQueries = new LongAdder();
+    private final LongAdder tcpFallbacks = new LongAdder();
+    private final LongAdder staleAnswers = new LongAdder();
+    private final LongAdder sentQueries = new LongAdder();
+    private final LongAdder timedOutQueries = new LongAdder();
+    private final Histogram lookupLatencies = new Histogram(MAX_RECORDED_LATENCY);
+    private final Histogram referralDepths = new Histogram(MAX_RECORDED_REFERRALS);
+    private final Histogram cnameChainLengths = new Histogram(MAX_INDIRECTION_LEVEL + 1);
+
+    // Lookups started on behalf of other lookups (name server addresses, the two families of
+    // a host, fresh records while stale ones are served). Tasks are never queued, since they
+    // may wait for one another: once all the threads are busy, a task runs on the thread that
+    // submits it instead.
+    private final ExecutorService subLookupExecutor = new ThreadPoolExecutor(0, MAX_SUB_LOOKUP_THREADS,
+            SUB_LOOKUP_KEEP_ALIVE, TimeUnit.SECONDS, new SynchronousQueue<>(), runnable -> {
+                Thread thread = new Thread(runnable, "dns-name-server-lookup");
+                thread.setDaemon(true);
+                return thread;
+            }, new ThreadPoolExecutor.CallerRunsPolicy());
+
+    public Resolver(InetAddress rootServer, DNSCache cache, UdpTransport transport, TcpTransport tcpTransport) {
+        this.rootServer = rootServer;
+        this.cache = cache;
+        this.transport = transport;
+        this.tcpTransport = tcpTransport;
+    }
+
+    public InetAddress getRootServer() {
+        return rootServer;
+    }
+
+    public void setRootServer(InetAddress rootServer) {
+        this.rootServer = rootServer;
+    }
+
+    public ForwarderPool getForwarders() {
+        return forwarders;
+    }
+
+    /** Switches between forwarding and iterative mode. Lookups already in progress finish in
+     * the mode they started in.
+     *
+     * @param forwarders Upstream recursive resolvers every query is forwarded to, or null to
+     *                   resolve queries iteratively from the root server.
+     */
+    public void setForwarders(ForwarderPool forwarders) {
+        this.forwarders = forwarders;
+    }
+
+    public boolean isVerboseTracing() {
+        return verboseTracing;
+    }
+
+    public void setVerboseTracing(boolean verboseTracing) {
+        this.verboseTracing = verboseTracing;
+    }
+
+    public long getLookupTimeout() {
+        return lookupTimeout;
+    }
+
+    /** Sets the maximum time a lookup may take, including the resolution of name servers and
+     * CNAME targets. When it is exceeded, the lookup returns whatever results are cached.
+     *
+     * @param lookupTimeout Maximum duration of a lookup, in milliseconds.
+     */
+    public void setLookupTimeout(long lookupTimeout) {
+        this.lookupTimeout = lookupTimeout;
+    }
+
+    public long getStaleAnswerTimeout() {
+        return staleAnswerTimeout;
+    }
+
+    /** Sets how long {@link #resolve(DNSNode)} waits for fresh records of a node whose cached
+     * records expired, before answering with the stale ones (the client response timer of
+     * RFC 8767).
+     *
+     * @param staleAnswerTimeout Time to wait for fresh records, in milliseconds.
+     */
+    public void setStaleAnswerTimeout(long staleAnswerTimeout) {
+        this.staleAnswerTimeout = staleAnswerTimeout;
+    }
+
+    public int getEdnsPayloadSize() {
+        return ednsPayloadSize;
+    }
+
+    /** Sets the UDP payload size advertised in the EDNS0 OPT record of every query, i.e., the
+     * size of the largest response that servers may send over UDP.
+     *
+     * @param ednsPayloadSize Payload size in bytes (512 to 65535), or 0 to send queries
+     *                        without an OPT record.
+     */
+    public void setEdnsPayloadSize(int ednsPayloadSize) {
+        this.ednsPayloadSize = ednsPayloadSize;
+    }
+
+    public DNSCache getCache() {
+        return cache;
+    }
+
+    public DelegationCache getDelegations() {
+        return delegations;
+    }
+
+    public InfrastructureCache getInfrastructure() {
+        return infrastructure;
+    }
+
+    /** Returns the number of nodes that were resolved by querying servers, as opposed to being
+     * found in the cache or shared with a concurrent lookup.
+     *
+     * @return Number of upstream resolutions.
+     */
+    public long getUpstreamResolutionCount() {
+        return upstreamResolutions.sum();
+    }
+
+    /** Returns the number of times a node was not resolved because a concurrent lookup was
+     * already resolving it, and its result was shared instead.
+     *
+     * @return Number of coalesced queries.
+     */
+    public long getCoalescedQueryCount() {
+        return coalescedQueries.sum();
+    }
+
+    /** Returns the number of queries sent to a second server because the first one had not
+     * responded within its expected round-trip time.
+     *
+     * @return Number of hedged queries.
+     */
+    public long getHedgedQueryCount() {
+        return hedgedQueries.sum();
+    }
+
+    /** Returns the number of queries repeated over TCP because their UDP response was
+     * truncated.
+     *
+     * @return Number of TCP fallbacks.
+     */
+    public long getTcpFallbackCount() {
+        return tcpFallbacks.sum();
+    }
+
+    /** Returns the number of times expired records were returned because fresh ones could
+     * not be obtained in time.
+     *
+     * @return Number of stale answers.
+     */
+    public long getStaleAnswerCount() {
+        return staleAnswers.sum();
+    }
+
+    /** Returns the number of queries sent to servers over UDP, including hedged queries and
+     * retries.
+     *
+     * @return Number of queries sent.
+     */
+    public long getSentQueryCount() {
+        return sentQueries.sum();
+    }
+
+    /** Returns the number of queries sent to servers that were not answered in time.
+     *
+     * @return Number of timed out queries.
+     */
+    public long getTimedOutQueryCount() {
+        return timedOutQueries.sum();
+    }
+
+    /** Returns the time taken by calls to {@link #resolve(DNSNode)}, from the cache or not, in
+     * microseconds.
+     *
+     * @return Distribution of lookup latencies.
+     */
+    public Histogram.Snapshot getLookupLatencies() {
+        return lookupLatencies.snapshot();
+    }
+
+    /** Returns the number of referrals followed by each lookup that queried servers, including
+     * those followed while resolving CNAME targets.
+     *
+     * @return Distribution of referral depths.
+     */
+    public Histogram.Snapshot getReferralDepths() {
+        return referralDepths.snapshot();
+    }
+
+    /** Returns the number of CNAME records followed by each lookup that queried servers.
+     *
+     * @return Distribution of CNAME chain lengths.
+     */
+    public Histogram.Snapshot getCnameChainLengths() {
+        return cnameChainLengths.snapshot();
+    }
+
+    /** Returns the number of nodes currently being resolved.
+     *
+     * @return Number of in-flight resolutions.
+     */
+    public int getInFlightCount() {
+        return inFlight.size();
+    }
+
+    /** Finds all the results for a specific node, either from the cache or by iteratively
+     * querying DNS servers starting at the root server. Stale records are returned if the
+     * node's records expired and fresh ones cannot be obtained within the stale answer
+     * timeout. This method is thread-safe.
+     *
+     * @param node Host and record type to be used for search.
+     * @return A potentially empty set of resource records corresponding to the query.
+     */
+    public Set<ResourceRecord> resolve(DNSNode node) {
+        return resolve(node, new CompletableFuture<>());
+    }
+
+    /** Like {@link #resolve(DNSNode)}, but completes a future once the lookup has been
+     * referred to the servers of the parent domain of the node, or gets any other response,
+     * or is over.
+     */
+    private Set<ResourceRecord> resolve(DNSNode node, CompletableFuture<Void> zoneReached) {
+        long start = System.nanoTime();
+        try {
+            return resolveOrServeStale(node, zoneReached);
+        } finally {
+            zoneReached.complete(null);
+            lookupLatencies.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+        }
+    }
+
+    private Set<ResourceRecord> resolveOrServeStale(DNSNode node, CompletableFuture<Void> zoneReached) {
+        if (!cache.hasStaleResults(node))
+            return new Lookup(zoneReached).getResults(node, 0);
+
+        // Another lookup is already trying to refresh the node; don't wait for it
+        if (inFlight.containsKey(node)) {
+            Set<ResourceRecord> stale = cache.getStaleResults(node);
+            if (!stale.isEmpty()) {
+                staleAnswers.increment();
+                return stale;
+            }
+        }
+
+        CompletableFuture<Set<ResourceRecord>> fresh = CompletableFuture.supplyAsync(
+                () -> new Lookup(zoneReached).getResults(node, 0), subLookupExecutor);
+        try {
+            Set<ResourceRecord> results = fresh.get(staleAnswerTimeout, TimeUnit.MILLISECONDS);
+            if (!results.isEmpty() || cache.hasNegativeResult(node))
+                return results;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | TimeoutException e) {
+            // the lookup keeps running, and caches its results if it succeeds
+        }
+        Set<ResourceRecord> stale = cache.getStaleResults(node);
+        if (!stale.isEmpty())
+            staleAnswers.increment();
+        return stale;
+    }
+
+    /** Resolves a node again by querying DNS servers, even if results are still cached for it,
+     * so that the cache holds fresh records before the current ones expire. The cached records
+     * remain in use until then. This method is thread-safe.
+     *
+     * @param node Host and record type to be refreshed.
+     * @return The records cached for the node once it has been resolved.
+     */
+    public Set<ResourceRecord> refresh(DNSNode node) {
+        return new Lookup().resolveUpstream(node);
+    }
+
+    /** Finds both the IPv4 (A) and IPv6 (AAAA) addresses of a host, resolving the two record
+     * types concurrently. The referral walk is shared: the AAAA lookup only starts once the A
+     * lookup has been referred to the servers of the host's parent domain (or the host itself),
+     * and resumes from that delegation, so only the final queries are duplicated. If the zone
+     * cut is higher up, the AAAA lookup starts when the A lookup gets its answer. If either
+     * record type, or the host's parent delegation, is already cached, both start at once.
+     * Each record type is resolved as by {@link #resolve(DNSNode)}, stale records included.
+     * This method is thread-safe.
+     *
+     * @param hostName    Fully qualified domain name of the host.
+     * @param waitForBoth If false, returns the addresses of whichever family is found first;
+     *                    if true, waits for both lookups to finish.
+     * @return A potentially empty set of A and AAAA records of the host.
+     */
+    public Set<ResourceRecord> resolveAddresses(String hostName, boolean waitForBoth) {
+        DNSNode ipv4 = new DNSNode(hostName, RecordType.A);
+        DNSNode ipv6 = new DNSNode(hostName, RecordType.AAAA);
+        long deadline = CachedClock.currentTimeMillis() + lookupTimeout;
+
+        CompletableFuture<Void> zoneReached = new CompletableFuture<>();
+        DelegationCache.Delegation closest = findClosestDelegation(ipv4.getHostName());
+        // A forwarded lookup makes no referral the other family could reuse
+        if (forwarders != null || isCached(ipv4) || isCached(ipv6) ||
+                (closest != null && isParentZone(ipv4.getHostName(), closest.getZone()))) {
+            zoneReached.complete(null);
+        }
+        // Each lookup is created by the thread that runs it
+        CompletableFuture<Set<ResourceRecord>> ipv4Results = CompletableFuture.supplyAsync(
+                () -> resolve(ipv4, zoneReached), subLookupExecutor);
+        ipv4Results.whenComplete((results, failure) -> zoneReached.complete(null));
+        CompletableFuture<Set<ResourceRecord>> ipv6Results = zoneReached.thenApplyAsync(
+                ignored -> resolve(ipv6), subLookupExecutor);
+
+        List<CompletableFuture<Set<ResourceRecord>>> pending = new ArrayList<>(List.of(ipv4Results, ipv6Results));
+        Set<ResourceRecord> addresses = new LinkedHashSet<>();
+        while (!pending.isEmpty() && (waitForBoth || addresses.isEmpty())) {
+            try {
+                CompletableFuture.anyOf(pending.toArray(new CompletableFuture<?>[0]))
+                        .get(Math.max(0, deadline - CachedClock.currentTimeMillis()), TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (ExecutionException e) {
+                // handled below, with the lookup that failed
+            } catch (TimeoutException e) {
+                break;
+            }
+            for (Iterator<CompletableFuture<Set<ResourceRecord>>> it = pending.iterator(); it.hasNext(); ) {
+                CompletableFuture<Set<ResourceRecord>> future = it.next();
+                if (future.isDone()) {
+                    it.remove();
+                    if (!future.isCompletedExceptionally()) {
+                        addresses.addAll(future.join());
+                    }
+                }
+            }
+        }
+        return addresses;
+    }
+
+    private boolean isCached(DNSNode node) {
+        return cache.hasNegativeResult(node) || !cache.peekCachedResults(node).isEmpty();
+    }
+
+    /** Returns true if a zone is the host name itself or its parent domain, i.e., the deepest
+     * zone cut a referral for the host name can lead to. Both names must be canonical.
+     */
+    private static boolean isParentZone(String hostName, String zone) {
+        return hostName.equals(zone) || DNSNode.parentName(hostName).equals(zone);
+    }
+
+    /** Returns the deepest known delegation enclosing a host name. Zone cuts are normally
+     * learned from referrals, but the NS records of a zone may also be in the cache without a
+     * matching delegation, e.g. after the cache was loaded from a snapshot. If such records
+     * are deeper than the closest delegation, and the addresses of some of their servers are
+     * cached, they are turned into a delegation, so that a warm cache does not send every
+     * lookup back to the root.
+     */
+    private DelegationCache.Delegation findClosestDelegation(String hostName) {
+        DelegationCache.Delegation delegation = delegations.findClosest(hostName);
+        Set<ResourceRecord> nsRecords = cache.findClosestEnclosing(hostName, RecordType.NS);
+        if (nsRecords.isEmpty())
+            return delegation;
+        String zone = nsRecords.iterator().next().getHostName();
+        if (delegation != null && delegation.getZone().length() >= zone.length())
+            return delegation;
+
+        List<String> nameServers = new ArrayList<>();
+        List<InetAddress> addresses = new ArrayList<>();
+        long ttl = Long.MAX_VALUE;
+        for (ResourceRecord record : nsRecords) {
+            nameServers.add(record.getTextResult());
+            ttl = Math.min(ttl, record.getTTL());
+            for (RecordType type : ADDRESS_TYPES)
+                for (ResourceRecord address : cache.peekCachedResults(new DNSNode(record.getTextResult(), type))) {
+                    InetAddress inetAddress = address.getInetResult();
+                    if (inetAddress != null)
+                        addresses.add(inetAddress);
+                }
+        }
+        if (addresses.isEmpty())
+            return delegation;
+        delegations.addDelegation(zone, DNSNode.parentName(zone), nameServers, addresses, ttl);
+        DelegationCache.Delegation added = delegations.findClosest(hostName);
+        return added != null ? added : delegation;
+    }
+
+    /** State of a single resolution. A lookup is only ever used by the thread that created it.
+     */
+    private class Lookup {
+
+        private final InetAddress rootServer = Resolver.this.rootServer;
+        private final ForwarderPool forwarders = Resolver.this.forwarders;
+        private final long deadline;
+        // Completed once a server responds with anything but a referral, or refers the lookup
+        // to the servers of the parent domain of the name being resolved
+        private final CompletableFuture<Void> zoneReached;
+        private final DNSMessageParser parser = new DNSMessageParser();
+        private final Set<DNSNode> resolving = new HashSet<>();
+        private int curIndLvl = 0;
+        private int referrals = 0;
+        private int cnameChainLength = 0;
+        // Records of the node being resolved, as stored from the response that answered it,
+        // kept in case a full cache did not admit the node
+        private final Map<DNSNode, Set<ResourceRecord>> answers = new HashMap<>();
+
+        private Lookup() {
+            this(new CompletableFuture<>());
+        }
+
+        /**
+         * Creates a lookup that signals when it reaches the zone of the name it resolves, so
+         * that a lookup for another record type of the same name may start from there.
+         *
+         * @param zoneReached Future completed once the lookup reaches the zone.
+         */
+        private Lookup(CompletableFuture<Void> zoneReached) {
+            this.zoneReached = zoneReached;
+            deadline = CachedClock.currentTimeMillis() + lookupTimeout;
+        }
+
+        /**
+         * Creates a lookup used to resolve a name server on behalf of another lookup.
+         *
+         * @param ancestors Nodes being resolved by the lookups this one was started from. They
+         *                  are treated as being resolved by this lookup too, so that a name
+         *                  server whose address depends on itself is not waited for.
+         * @param deadline  Time at which the lookup this one was started from gives up.
+         */
+        private Lookup(Set<DNSNode> ancestors, long deadline) {
+            this.zoneReached = new CompletableFuture<>();
+            this.deadline = deadline;
+            resolving.addAll(ancestors);
+        }
+
+        /**
+         * Finds all the result for a specific node.
+         *
+         * @param node             Host and record type to be used for search.
+         * @param indirectionLevel Control to limit the number of recursive calls due to CNAME redirection.
+         *                         The initial call should be made with 0 (zero), while recursive calls for
+         *                         regarding CNAME results should increment this value by 1. Once this value
+         *                         reaches MAX_INDIRECTION_LEVEL, the function prints an error message and
+         *                         returns an empty set.
+         * @return A set of resource records corresponding to the specific query requested.
+         */
+        private Set<ResourceRecord> getResults(DNSNode node, int indirectionLevel) {
+
+            if (indirectionLevel > MAX_INDIRECTION_LEVEL) {
+                System.err.println("Maximum number of indirection levels reached.");
+                return Collections.emptySet();
+            }
+
+            // reset the indirection level if its a fresh search, it wont change otherwise
+            curIndLvl = indirectionLevel;
+
+            // a cached negative answer means the name or record type does not exist
+            if (cache.hasNegativeResult(node)) {
+                return Collections.emptySet();
+            }
+
+            // check cache for record, if not found commence query
+            Set<ResourceRecord> results = cache.getCachedResults(node);
+            if (!results.isEmpty()) {
+                return results;
+            }
+
+            // a node this lookup is already resolving (e.g., a name server whose address depends
+            // on itself) cannot be resolved
+            if (resolving.contains(node)) {
+                return Collections.emptySet();
+            }
+
+            // a lookup past its deadline does not start new resolutions
+            if (CachedClock.currentTimeMillis() >= deadline) {
+                return Collections.emptySet();
+            }
+
+            return resolveUpstream(node);
+        }
+
+        /**
+         * Resolves a node by querying servers, whether or not results are cached for it. If
+         * another lookup is already resolving the same node, its result is waited for instead.
+         *
+         * @param node Host and record type to be used for search.
+         * @return A set of resource records corresponding to the node.
+         */
+        private Set<ResourceRecord> resolveUpstream(DNSNode node) {
+            Set<ResourceRecord> results = Collections.emptySet();
+
+            // if another lookup is resolving the same node, wait for its result
+            CompletableFuture<Set<ResourceRecord>> flight = new CompletableFuture<>();
+            CompletableFuture<Set<ResourceRecord>> existing = inFlight.putIfAbsent(node, flight);
+            if (existing != null) {
+                coalescedQueries.increment();
+                return awaitResults(node, existing);
+            }
+
+            resolving.add(node);
+            try {
+                upstreamResolutions.increment();
+                if (forwarders != null) {
+                    forward(node);
+                } else {
+                    resolveFromClosestDelegation(node);
+                }
+                Set<ResourceRecord> answer = answers.remove(node);
+                results = answer != null ? answer : cache.peekCachedResults(node);
+                return results;
+            } finally {
+                resolving.remove(node);
+                inFlight.remove(node, flight);
+                flight.complete(results);
+                // Lookups started for name servers always hold the nodes of the lookup they
+                // were started from, so only the outermost resolution of a lookup is recorded
+                if (resolving.isEmpty()) {
+                    referralDepths.record(referrals);
+                    cnameChainLengths.record(cnameChainLength);
+                }
+            }
+        }
+
+        /**
+         * Waits for the result of a node being resolved by another lookup. If that lookup does
+         * not finish before the deadline of this one, whatever is cached for the node at that
+         * point is returned.
+         *
+         * @param node   Host and record type being resolved.
+         * @param flight Future completed by the lookup resolving the node.
+         * @return A set of resource records corresponding to the node.
+         */
+        private Set<ResourceRecord> awaitResults(DNSNode node, CompletableFuture<Set<ResourceRecord>> flight) {
+            try {
+                return flight.get(Math.max(0, deadline - CachedClock.currentTimeMillis()), TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException | TimeoutException e) {
+                // fall through to the cache
+            }
+            return cache.peekCachedResults(node);
+        }
+
+        /**
+         * Resolves a node by forwarding it to the upstream recursive resolvers, tried in the
+         * order chosen by the forwarder pool.
+         *
+         * @param node Host name and record type to be used for the query.
+         */
+        private void forward(DNSNode node) {
+            List<InetAddress> upstreams = forwarders.select();
+            if (verboseTracing) {
+                System.out.printf("%-12s %s\n", "Forwarding:", upstreams);
+            }
+            retrieveResultsFromServers(node, null, upstreams);
+        }
+
+        /**
+         * Resolves a node starting at the servers of the deepest cached delegation that encloses
+         * its host name. If no delegation is cached, or none of its servers responds, resolution
+         * starts at the root server.
+         *
+         * @param node Host name and record type to be used for the query.
+         */
+        private void resolveFromClosestDelegation(DNSNode node) {
+            DelegationCache.Delegation delegation = findClosestDelegation(node.getHostName());
+            if (delegation != null) {
+                if (verboseTracing) {
+                    System.out.printf("%-12s %s %s\n", "Resuming at:",
+                            delegation.getZone().isEmpty() ? "." : delegation.getZone(), delegation.getNameServers());
+                }
+                if (retrieveResultsFromServers(node, delegation.getZone(), delegation.getAddresses())) {
+                    return;
+                }
+            }
+            retrieveResultsFromServers(node, "", Collections.singletonList(rootServer));
+        }
+
+        /**
+         * Retrieves DNS results from one of a set of DNS servers. Servers are tried from the
+         * fastest to the slowest, according to their smoothed round-trip times. If a server has
+         * not responded within its expected round-trip time, the query is also sent to the next
+         * server (a hedged query), and the first usable response is kept; late responses to
+         * earlier queries are still used to update the statistics of their servers.
+         *
+         * <p>Each query times out after the retransmission timeout of its server. Once every
+         * server has been tried, the servers that timed out are tried again, up to
+         * MAX_ATTEMPTS times, doubling their timeout on each attempt. No query outlives the
+         * deadline of the lookup. Queries are sent in iterative mode, unless the lookup is
+         * forwarded, and results are stored in the cache.</p>
+         *
+         * @param node       Host name and record type to be used for the query.
+         * @param zone       Canonical name of the zone the servers are authoritative for, or
+         *                   null if they are upstream recursive resolvers.
+         * @param candidates Addresses of the servers that may be used for the query. Upstreams
+         *                   of a forwarded lookup are already in the order they are tried in.
+         * @return true if a server returned a usable response (including a name error), false
+         *         if none responded in time, or all responded with a malformed message or an
+         *         error.
+         */
+        private boolean retrieveResultsFromServers(DNSNode node, String zone, Collection<InetAddress> candidates) {
+            if (curIndLvl > MAX_INDIRECTION_LEVEL) {
+                return false;
+            }
+            Deque<InetAddress> servers = new ArrayDeque<>(forwarders != null ? candidates : infrastructure.order(candidates));
+            List<InetAddress> timedOut = new ArrayList<>();
+            Map<CompletableFuture<byte[]>, SentQuery> outstanding = new LinkedHashMap<>();
+            InetAddress lastServer = null;
+            int attempt = 0;
+            while (true) {
+                if (outstanding.isEmpty() && servers.isEmpty()) {
+                    // Retry the servers that timed out, with a longer timeout
+                    if (timedOut.isEmpty() || ++attempt >= MAX_ATTEMPTS) {
+                        return false;
+                    }
+                    servers.addAll(timedOut);
+                    timedOut.clear();
+                }
+                long remaining = deadline - CachedClock.currentTimeMillis();
+                if (remaining <= 0) {
+                    return false;
+                }
+                if (outstanding.isEmpty()) {
+                    lastServer = servers.poll();
+                    SentQuery query = sendQuery(node, lastServer, attempt, false);
+                    if (query == null) {
+                        return false;
+                    }
+                    outstanding.put(query.response, query);
+                }
+
+                // Wait for a response, or until the last server queried is late
+                try {
+                    long wait = servers.isEmpty() ? remaining : Math.min(remaining, infrastructure.getExpectedRTT(lastServer));
+                    CompletableFuture.anyOf(outstanding.keySet().toArray(new CompletableFuture<?>[0]))
+                            .get(wait, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                } catch (ExecutionException e) {
+                    // handled below, with the query that failed
+                } catch (TimeoutException e) {
+                    if (!servers.isEmpty()) {
+                        lastServer = servers.poll();
+                        SentQuery query = sendQuery(node, lastServer, attempt, true);
+                        if (query != null) {
+                            hedgedQueries.increment();
+                            outstanding.put(query.response, query);
+                        }
+                    }
+                    continue;
+                }
+
+                for (Iterator<SentQuery> it = outstanding.values().iterator(); it.hasNext(); ) {
+                    SentQuery query = it.next();
+                    CompletableFuture<byte[]> response = query.response;
+                    if (!response.isDone()) {
+                        continue;
+                    }
+                    it.remove();
+                    InetAddress server = query.server;
+                    if (response.isCompletedExceptionally()) {
+                        if (verboseTracing) {
+                            System.out.printf("%-12s %s\n", "Timed out:", server.getHostAddress());
+                        }
+                        timedOut.add(server);
+                        continue;
+                    }
+                    boolean usable = false;
+                    try {
+                        parser.reset(ByteBuffer.wrap(response.join()));
+                        if (parser.isTruncated()) {
+                            // Repeat the query over TCP to get the whole response
+                            byte[] DNSResponse = queryOverTcp(node, server);
+                            if (DNSResponse == null) {
+                                continue;
+                            }
+                            parser.reset(ByteBuffer.wrap(DNSResponse));
+                        } else if (parser.getResponseCode() == RCODE_FORMERR && ednsPayloadSize > 0 &&
+                                infrastructure.isEdnsSupported(server)) {
+                            // The server does not understand EDNS0, query it again without it
+                            infrastructure.recordEdnsUnsupported(server);
+                            servers.addFirst(server);
+                            continue;
+                        }
+                        usable = readResponse(node, zone);
+                        if (usable) {
+                            return true;
+                        }
+                    } catch (DNSFormatException e) {
+                        // Malformed response, ignore it
+                    } finally {
+                        if (forwarders != null) {
+                            forwarders.recordOutcome(server, usable, query.sent);
+                        }
+                    }
+                }
+            }
+        }
+
+        /**
+         * Sends a query for a node to a server. The query times out after the retransmission
+         * timeout of the server, doubled for every previous attempt, or at the deadline of the
+         * lookup if that comes first. Its round-trip time, or its timeout, is recorded in the
+         * infrastructure cache once it completes.
+         *
+         * @param node    Host name and record type to be used for the query.
+         * @param server  Address of the server to be used for the query.
+         * @param attempt Number of previous attempts to query the server.
+         * @param hedged  true if the query is a hedge for a slower server, for tracing.
+         * @return The query, with a future completed with its response, or null if the query
+         *         could not be encoded.
+         */
+        private SentQuery sendQuery(DNSNode node, InetAddress server, int attempt, boolean hedged) {
+            // Encode the DNSQuery (always a standard query) into the thread's query buffer,
+            // advertising a larger UDP payload unless the server does not support EDNS0
+            ByteBuffer DNSQuery;
+            try {
+                int payloadSize = infrastructure.isEdnsSupported(server) ? ednsPayloadSize : 0;
+                DNSQuery = forwarders != null ? ForwarderPool.encode(node, payloadSize) :
+                        DNSQueryEncoder.encode(node, 0x0000, payloadSize);
+            } catch (IllegalArgumentException e) {
+                System.err.println(e.getMessage());
+                return null;
+            }
+
+            long timeout = Math.min(infrastructure.getRetransmissionTimeout(server) << attempt, MAX_QUERY_TIMEOUT);
+            timeout = Math.max(1, Math.min(timeout, deadline - CachedClock.currentTimeMillis()));
+
+            // Send the DNS Request using UDP, timing the matching response
+            InetSocketAddress address = new InetSocketAddress(server, DEFAULT_DNS_PORT);
+            infrastructure.recordQuery(server);
+            sentQueries.increment();
+            long sent = System.nanoTime();
+            CompletableFuture<byte[]> response = transport.query(address, DNSQuery, node, timeout);
+            if (forwarders != null) {
+                forwarders.recordSent(server);
+            }
+            ForwarderPool upstreams = forwarders;
+            response.whenComplete((bytes, failure) -> {
+                if (failure == null) {
+                    infrastructure.recordResponse(server, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - sent));
+                } else {
+                    infrastructure.recordTimeout(server);
+                    timedOutQueries.increment();
+                }
+                if (upstreams != null) {
+                    upstreams.recordCompleted(server);
+                    if (failure != null) {
+                        upstreams.recordOutcome(server, false, sent);
+                    }
+                }
+            });
+
+            if (verboseTracing) {
+                int Transaction_ID = DNSQuery.getShort(0) & 0xFFFF;
+                System.out.println("\n");
+                System.out.printf("%-12s %d %s  %s %s %s\n", "Query ID", Transaction_ID, node.getHostName(), node.getType(), "-->", server.getHostAddress());
+                System.out.printf("%-12s %s %s %d ms, %s %d ms\n", hedged ? "Hedged to:" : "Selected:", server.getHostAddress(),
+                        "srtt =", infrastructure.getSmoothedRTT(server), "timeout =", timeout);
+            }
+            return new SentQuery(response, server, sent);
+        }
+
+        /**
+         * Repeats a query over TCP, after a server returned a truncated response over UDP. The
+         * connection to the server is kept open and shared with other lookups.
+         *
+         * @param node   Host name and record type to be used for the query.
+         * @param server Address of the server that returned the truncated response.
+         * @return The complete response, or null if the server did not respond in time.
+         */
+        private byte[] queryOverTcp(DNSNode node, InetAddress server) {
+            long timeout = Math.min(MAX_QUERY_TIMEOUT, deadline - CachedClock.currentTimeMillis());
+            if (timeout <= 0) {
+                return null;
+            }
+            tcpFallbacks.increment();
+            if (verboseTracing) {
+                System.out.printf("%-12s %s %s %s\n", "Truncated:", node.getHostName(), "TCP -->", server.getHostAddress());
+            }
+            ByteBuffer DNSQuery = forwarders != null ? ForwarderPool.encode(node, 0) : DNSQueryEncoder.encode(node, 0x0000);
+            try {
+                return tcpTransport.query(new InetSocketAddress(server, DEFAULT_DNS_PORT), DNSQuery, node, timeout).get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            } catch (ExecutionException e) {
+                return null;
+            }
+        }
+
+        /**
+         * Reads the DNS response loaded in the parser, caches the records it contains and follows
+         * any referral or CNAME it returned. Records outside the zone of the server, and additional
+         * records other than glue, are ignored, and a referral is only followed if it delegates a
+         * zone below that of the server, which encloses the host name.
+         *
+         * @param node       Host name and record type used for the query.
+         * @param serverZone Canonical name of the zone the server is authoritative for, or null
+         *                   if it is an upstream recursive resolver.
+         * @return true if the response was an answer, an accepted referral or a name error,
+         *         false if the server returned an error or an unacceptable referral.
+         * @throws DNSFormatException If the response is malformed.
+         */
+        private boolean readResponse(DNSNode node, String serverZone) throws DNSFormatException {
+
+            // Read the Header
+            int RCODE = parser.getResponseCode();
+            int Authoritative = parser.isAuthoritative() ? 1 : 0;
+            int AnswerRRs = parser.getAnswerCount();
+            int AuthorityRRs = parser.getAuthorityCount();
+            int AdditionalRRs = parser.getAdditionalCount();
+
+            if (verboseTracing) {
+                System.out.printf("%-12s %d %s %s\n", "Response ID:", parser.getId(), "Authoritative =", (Authoritative == 1 ? "true" : "false"));
+            }
+
+            // Read the Answers (questions are skipped by the parser)
+            if (verboseTracing) {
+                System.out.println("  Answers (" + AnswerRRs + ")");
+            }
+            // Records are stored once the whole response is read, all those of a node at once
+            Map<DNSNode, List<ResourceRecord>> received = new LinkedHashMap<>();
+            String[] canonicalName = new String[AnswerRRs];
+            for (int i = 0; i < AnswerRRs; i++) {
+                parser.nextRecord();
+                ResourceRecord record = parser.toResourceRecord();
+                verbosePrintResourceRecord(record, parser.getType());
+
+                if (record.getType() == RecordType.CNAME) {
+                    canonicalName[i] = record.getTextResult();
+                } else {
+                    canonicalName[i] = null;
+                }
+
+                received.computeIfAbsent(record.getNode(), key -> new ArrayList<>()).add(record);
+            }
+
+            // Read the Authoritative nameservers
+            if (verboseTracing) {
+                System.out.println("  Nameservers (" + AuthorityRRs + ")");
+            }
+            String[] nameServers = new String[AuthorityRRs];
+            boolean referral = false;
+            long negativeTTL = -1;
+            String zone = null;
+            long delegationTTL = Long.MAX_VALUE;
+            for (int i = 0; i < AuthorityRRs; i++) {
+                parser.nextRecord();
+                ResourceRecord record = parser.toResourceRecord();
+                verbosePrintResourceRecord(record, parser.getType());
+
+                if (record.getType() == RecordType.NS && (zone == null || zone.equals(record.getHostName()))) {
+                    nameServers[i] = DNSNode.canonicalName(record.getTextResult());
+                    referral = true;
+                    zone = record.getHostName();
+                    delegationTTL = Math.min(delegationTTL, parser.getTTL());
+                } else {
+                    nameServers[i] = null;
+                }
+                if (record.getType() == RecordType.SOA) {
+                    // A negative answer is cached for the smaller of the SOA TTL and MINIMUM
+                    negativeTTL = Math.min(parser.getTTL(), parser.getSOAMinimum());
+                }
+
+                received.computeIfAbsent(record.getNode(), key -> new ArrayList<>()).add(record);
+            }
+
+            // Read the Additional records
+            if (verboseTracing) {
+                System.out.println("  Additional Information (" + AdditionalRRs + ")");
+            }
+            Map<String, List<InetAddress>> glue = new LinkedHashMap<>();
+            for (int i = 0; i < AdditionalRRs; i++) {
+                parser.nextRecord();
+                if (parser.getType() == TYPE_OPT) {
+                    // EDNS0 pseudo-record, not cached
+                    continue;
+                }
+                ResourceRecord record = parser.toResourceRecord();
+                verbosePrintResourceRecord(record, parser.getType());
+
+                // Glue is only needed, and only trusted, for name servers inside the delegated zone;
+                // other additional records are not cached
+                if (record.getInetResult() != null && isNameServer(nameServers, record.getHostName()) &&
+                        DelegationCache.isInZone(record.getHostName(), zone)) {
+                    glue.computeIfAbsent(record.getHostName(), name -> new ArrayList<>())
+                            .add(record.getInetResult());
+                    received.computeIfAbsent(record.getNode(), key -> new ArrayList<>()).add(record);
+                }
+            }
+
+            for (Map.Entry<DNSNode, List<ResourceRecord>> entry : received.entrySet()) {
+                if (serverZone != null && !DelegationCache.isInZone(entry.getKey().getHostName(), serverZone)) {
+                    // Out of bailiwick: the server has no authority over these records
+                    continue;
+                }
+                Set<ResourceRecord> stored = cache.addResults(entry.getKey(), entry.getValue());
+                if (entry.getKey().equals(node) && !stored.isEmpty()) {
+                    answers.put(node, stored);
+                }
+            }
+
+            // A server may only delegate a zone below its own, which must enclose the name;
+            // anything else is a lame or upward referral, so try the next server. An upstream
+            // that returns a referral does not offer recursion, and is also skipped.
+            boolean delegated = referral && AnswerRRs == 0 && RCODE == 0 &&
+                    DelegationCache.isBelowZone(zone, serverZone) && DelegationCache.isInZone(node.getHostName(), zone);
+            if (referral && AnswerRRs == 0 && RCODE == 0 && !delegated) {
+                return false;
+            }
+
+            // Remember the zone cut of the referral
+            if (delegated) {
+                List<String> zoneNameServers = new ArrayList<>();
+                for (String nameServer : nameServers) {
+                    if (nameServer != null) {
+                        zoneNameServers.add(nameServer);
+                    }
+                }
+                List<InetAddress> glueAddresses = new ArrayList<>();
+                glue.values().forEach(glueAddresses::addAll);
+                delegations.addDelegation(zone, serverZone, zoneNameServers, glueAddresses, delegationTTL);
+            }
+
+            // Cache a name error, or an authoritative answer with no records, as a negative answer
+            // for as long as the SOA record allows it (RFC 2308). Upstream recursive resolvers
+            // relay such answers without the authoritative flag.
+            if (negativeTTL >= 0 && !referral && AnswerRRs == 0 &&
+                    (RCODE == 3 || (RCODE == 0 && (Authoritative == 1 || forwarders != null)))) {
+                cache.addNegativeResult(node, negativeTTL, RCODE == 3);
+            }
+
+            // If answer not found (and name servers are returned) query the returned name servers
+            if (delegated) {
+                if (isParentZone(node.getHostName(), zone)) {
+                    zoneReached.complete(null);
+                }
+                followReferral(node, zone, nameServers, glue);
+            } else {
+                zoneReached.complete(null);
+            }
+
+            // If returned answer is a CNAME, repeat the whole query for CNAME
+            for (int i = 0; (i < AnswerRRs) && (RCODE == 0); i++) {
+                if (canonicalName[i] != null) {
+                    if (curIndLvl > MAX_INDIRECTION_LEVEL) {
+                        break;
+                    }
+                    curIndLvl++;
+                    cnameChainLength = Math.max(cnameChainLength, curIndLvl);
+                    DNSNode CNnode = new DNSNode(canonicalName[i], node.getType());
+                    Set<ResourceRecord> CRecords = getResults(CNnode, curIndLvl);
+                    if (!CRecords.isEmpty()) {
+                        List<ResourceRecord> aliased = new ArrayList<>(CRecords.size());
+                        for (ResourceRecord record: CRecords) {
+                            aliased.add(record.getInetResult() != null ?
+                                    new ResourceRecord(node.getHostName(), node.getType(), record.getTTL(), record.getInetResult()) :
+                                    new ResourceRecord(node.getHostName(), node.getType(), record.getTTL(), record.getTextResult()));
+                        }
+                        Set<ResourceRecord> stored = cache.addResults(node, aliased);
+                        if (!stored.isEmpty()) {
+                            answers.put(node, stored);
+                        }
+                        break;
+                    }
+                }
+            }
+
+            return RCODE == 0 || RCODE == 3;
+        }
+
+        /**
+         * Follows a referral, querying the name servers of the delegated zone until one of them
+         * responds. Addresses taken from glue records, or already cached, are tried first. Only if
+         * none of them responds are the addresses of the remaining name servers resolved: each
+         * out-of-bailiwick name server (one outside the delegated zone, which therefore cannot
+         * have glue) is resolved concurrently, and its addresses are tried as soon as they are
+         * known. Name servers inside the zone without glue cannot be resolved, and are skipped.
+         *
+         * @param node        Host name and record type being resolved.
+         * @param zone        Name of the delegated zone.
+         * @param nameServers The name servers listed in the authority section (or null).
+         * @param glue        Glue addresses from the additional section, by canonical name server.
+         */
+        private void followReferral(DNSNode node, String zone, String[] nameServers, Map<String, List<InetAddress>> glue) {
+            referrals++;
+            Set<InetAddress> tried = new LinkedHashSet<>();
+            List<String> unresolved = new ArrayList<>();
+            for (String nameServer : nameServers) {
+                if (nameServer == null) {
+                    continue;
+                }
+                List<InetAddress> addresses = new ArrayList<>(glue.getOrDefault(nameServer, Collections.emptyList()));
+                for (RecordType type : ADDRESS_TYPES) {
+                    for (ResourceRecord record : cache.peekCachedResults(new DNSNode(nameServer, type))) {
+                        if (record.getInetResult() != null) {
+                            addresses.add(record.getInetResult());
+                        }
+                    }
+                }
+                if (addresses.isEmpty() && !DelegationCache.isInZone(nameServer, zone)) {
+                    unresolved.add(nameServer);
+                }
+                tried.addAll(addresses);
+            }
+            if (!tried.isEmpty() && retrieveResultsFromServers(node, zone, tried)) {
+                return;
+            }
+
+            // Resolve the IPv4 and IPv6 addresses of out-of-bailiwick name servers concurrently
+            List<CompletableFuture<Set<ResourceRecord>>> pending = new ArrayList<>();
+            Set<DNSNode> ancestors = new HashSet<>(resolving);
+            for (String nameServer : unresolved) {
+                for (RecordType type : ADDRESS_TYPES) {
+                    DNSNode nameServerNode = new DNSNode(nameServer, type);
+                    int level = curIndLvl;
+                    pending.add(CompletableFuture.supplyAsync(
+                            () -> new Lookup(ancestors, deadline).getResults(nameServerNode, level), subLookupExecutor));
+                }
+            }
+            while (!pending.isEmpty()) {
+                try {
+                    CompletableFuture.anyOf(pending.toArray(new CompletableFuture<?>[0])).get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                } catch (ExecutionException e) {
+                    // handled below, with the future that failed
+                }
+                for (Iterator<CompletableFuture<Set<ResourceRecord>>> it = pending.iterator(); it.hasNext(); ) {
+                    CompletableFuture<Set<ResourceRecord>> future = it.next();
+                    if (!future.isDone()) {
+                        continue;
+                    }
+                    it.remove();
+                    List<InetAddress> found = new ArrayList<>();
+                    for (ResourceRecord record : future.getNow(Collections.emptySet())) {
+                        InetAddress address = record.getInetResult();
+                        if (address != null && tried.add(address)) {
+                            delegations.addAddress(zone, address);
+                            found.add(address);
+                        }
+                    }
+                    if (!found.isEmpty() && retrieveResultsFromServers(node, zone, found)) {
+                        return;
+                    }
+                }
+            }
+        }
+
+        /**
+         * Returns true if a name is one of the name servers listed in a referral.
+         *
+         * @param nameServers   The name servers listed in the authority section (or null).
+         * @param hostName  The canonical name to look for.
+         * @return  true if the name is one of the name servers.
+         */
+        private boolean isNameServer(String[] nameServers, String hostName) {
+            for (String nameServer : nameServers) {
+                if (nameServer != null && nameServer.equals(hostName)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Prints a Resource Record, for use with verbose tracing.
+         *
+         * @param record    The resource record being printed.
+         * @param rtype The type of the record being preinted
+         */
+        private void verbosePrintResourceRecord(ResourceRecord record, int rtype) {
+            if (verboseTracing)
+                System.out.format("       %-30s %-10d %-4s %s\n", record.getHostName(),
+                        record.getTTL(),
+                        record.getType() == RecordType.OTHER ? rtype : record.getType(),
+                        record.getTextResult());
+        }
+    }
+
+    /** A query sent to a server, and the time it was sent, as given by {@link System#nanoTime()}.
+     */
+    private static final class SentQuery {
+
+        private final CompletableFuture<byte[]> response;
+        private final InetAddress server;
+        private final long sent;
+
+        private SentQuery(CompletableFuture<byte[]> response, InetAddress server, long sent) {
+            this.response = response;
+            this.server = server;
+            this.sent = sent;
+        }
+    }
+}
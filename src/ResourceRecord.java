@@ -1,100 +1,193 @@
-import java.io.Serializable;
-import java.net.InetAddress;
-import java.util.Date;
-
-/** A resource record corresponds to each individual result returned by a DNS response. It links
- * a DNS node (host name and record type) to either an IP address (e.g., A or AAAA records) or
- * a textual response (e.g., CNAME or NS records). A TTL (time-to-live) field is also specified,
- * and is represented by an expiration time calculated as a delta from the current time.
- */
-public class ResourceRecord implements Serializable {
-
-    private DNSNode node;
-    private Date expirationTime;
-    private String textResult;
-    private InetAddress inetResult;
-
-    public ResourceRecord(String hostName, RecordType type, long ttl, String result) {
-        this.node = new DNSNode(hostName, type);
-        this.expirationTime = new Date(System.currentTimeMillis() + (ttl * 1000));
-        this.textResult = result;
-        this.inetResult = null;
-    }
-
-    public ResourceRecord(String hostName, RecordType type, long ttl, InetAddress result) {
-        this(hostName, type, ttl, result.getHostAddress());
-        this.inetResult = result;
-    }
-
-    public DNSNode getNode() {
-        return node;
-    }
-
-    public String getHostName() {
-        return node.getHostName();
-    }
-
-    public RecordType getType() {
-        return node.getType();
-    }
-
-    /** The TTL for this record. It is returned based on the (ceiling of the) number of seconds
-     * remaining until this record expires. The TTL returned by this method will only match the
-     * TTL obtained from the DNS server in the first second from the time this record was
-     * created.
-     *
-     * @return The number of seconds, rounded up, until this record expires.
-     */
-    public long getTTL() {
-        return (expirationTime.getTime() - System.currentTimeMillis() + 999) / 1000;
-    }
-
-    /** Returns true if this record has not expired yet, and false otherwise. An expired record
-     * should not be maintained in cache, and should instead be retrieved again from an
-     * authoritative DNS server.
-     *
-     * @return true if this record has not expired yet, and false otherwise.
-     */
-    public boolean isStillValid() {
-        return expirationTime.after(new Date());
-    }
-
-    /** Returns true if this record expires before another record. This method may be used to
-     * identify if a newly acquired record should replace the one currently in the cache. It
-     * may also potentially be used, for example, to identify if a CNAME record expires before
-     * the equivalent A record it links to.
-     *
-     * @param record Another resource record whose expiration this record should be compared with.
-     * @return true if this record expires before the parameter record, or false otherwise.
-     */
-    public boolean expiresBefore(ResourceRecord record) {
-        return this.expirationTime.before(record.expirationTime);
-    }
-
-    public String getTextResult() {
-        return textResult;
-    }
-
-    public InetAddress getInetResult() {
-        return inetResult;
-    }
-
-    @Override
-    public boolean equals(Object o) {
-        if (this == o) return true;
-        if (o == null || getClass() != o.getClass()) return false;
-
-        ResourceRecord record = (ResourceRecord) o;
-
-        if (!node.equals(record.node)) return false;
-        if (!textResult.equals(record.textResult)) return false;
-        return inetResult != null ? inetResult.equals(record.inetResult) : record.inetResult == null;
-    }
-
-    @Override
-    public int hashCode() {
-        int result = node.hashCode();
-        result = 31 * result + textResult.hashCode();
-        return result;
-    }
-}
+import java.io.Serializable;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+
+/** A resource record corresponds to each individual result returned by a DNS response. It links
+ * a DNS node (host name and record type) to either an IP address (e.g., A or AAAA records) or
+ * a textual response (e.g., CNAME or NS records). A TTL (time-to-live) field is also specified,
+ * and is represented by an expiration time calculated as a delta from the current time.
+ *
+ * <p>Records are kept compact, since the cache may hold millions of them: the expiration time
+ * is a primitive, and addresses are kept as their raw bytes, from which the InetAddress and
+ * textual forms are only built when requested. Records cached for the same node share a
+ * single DNSNode (see {@link #withNode(DNSNode)}).</p>
+ */
+public class ResourceRecord implements Serializable {
+
+    private final DNSNode node;
+    private final long expirationTime;
+    // Raw address of A and AAAA records, or null for other records, whose result is textual
+    private final byte[] address;
+    private final String textResult;
+
+    public ResourceRecord(String hostName, RecordType type, long ttl, String result) {
+        this(new DNSNode(hostName, type), System.currentTimeMillis() + (ttl * 1000), null, result);
+    }
+
+    public ResourceRecord(String hostName, RecordType type, long ttl, InetAddress result) {
+        this(hostName, type, ttl, result.getAddress());
+    }
+
+    /** Creates an address record from the raw bytes of the address.
+     *
+     * @param hostName Host name the record belongs to.
+     * @param type     Record type, usually A or AAAA.
+     * @param ttl      Number of seconds until the record expires.
+     * @param address  IPv4 (4 bytes) or IPv6 (16 bytes) address. The array is not copied, and
+     *                 must not be modified afterwards.
+     */
+    public ResourceRecord(String hostName, RecordType type, long ttl, byte[] address) {
+        this(new DNSNode(hostName, type), System.currentTimeMillis() + (ttl * 1000), address, null);
+    }
+
+    /** Creates a record that expires at a given time, e.g. when restored from a snapshot.
+     *
+     * @param node           Host name and record type.
+     * @param expirationTime Time at which the record expires, in milliseconds since the epoch.
+     * @param address        Raw address, not copied, or null if the result is textual.
+     * @param textResult     Textual result, or null if the record is an address.
+     */
+    ResourceRecord(DNSNode node, long expirationTime, byte[] address, String textResult) {
+        this.node = node;
+        this.expirationTime = expirationTime;
+        this.address = address;
+        this.textResult = textResult;
+    }
+
+    public DNSNode getNode() {
+        return node;
+    }
+
+    public String getHostName() {
+        return node.getHostName();
+    }
+
+    public RecordType getType() {
+        return node.getType();
+    }
+
+    /** The TTL for this record. It is returned based on the (ceiling of the) number of seconds
+     * remaining until this record expires. The TTL returned by this method will only match the
+     * TTL obtained from the DNS server in the first second from the time this record was
+     * created.
+     *
+     * @return The number of seconds, rounded up, until this record expires.
+     */
+    public long getTTL() {
+        return (expirationTime - System.currentTimeMillis() + 999) / 1000;
+    }
+
+    /** Returns true if this record has not expired yet, and false otherwise. An expired record
+     * should not be maintained in cache, and should instead be retrieved again from an
+     * authoritative DNS server.
+     *
+     * @return true if this record has not expired yet, and false otherwise.
+     */
+    public boolean isStillValid() {
+        return expirationTime > CachedClock.currentTimeMillis();
+    }
+
+    /** The time at which this record expires, in milliseconds since the epoch.
+     *
+     * @return The expiration time of this record.
+     */
+    public long getExpirationTime() {
+        return expirationTime;
+    }
+
+    /** Returns true if this record expires before another record. This method may be used to
+     * identify if a newly acquired record should replace the one currently in the cache. It
+     * may also potentially be used, for example, to identify if a CNAME record expires before
+     * the equivalent A record it links to.
+     *
+     * @param record Another resource record whose expiration this record should be compared with.
+     * @return true if this record expires before the parameter record, or false otherwise.
+     */
+    public boolean expiresBefore(ResourceRecord record) {
+        return this.expirationTime < record.expirationTime;
+    }
+
+    /** Returns a copy of this record with a different TTL, counted from the current time.
+     *
+     * @param ttl Number of seconds until the copy expires.
+     * @return A new record with the same host name, type and result as this one.
+     */
+    public ResourceRecord withTTL(long ttl) {
+        return new ResourceRecord(node, System.currentTimeMillis() + (ttl * 1000), address, textResult);
+    }
+
+    /** Returns a copy of this record that refers to an equal node instance, so that records of
+     * the same node do not each keep their own copy of the host name.
+     *
+     * @param node A node equal to the node of this record.
+     * @return A record with the same expiration and result as this one.
+     */
+    ResourceRecord withNode(DNSNode node) {
+        return new ResourceRecord(node, expirationTime, address, textResult);
+    }
+
+    /** Returns the result of this record in textual form. For address records, the text is
+     * formatted from the address each time this method is called.
+     *
+     * @return The address, name or other data this record resolves to.
+     */
+    public String getTextResult() {
+        if (address != null) {
+            InetAddress inetResult = getInetResult();
+            return inetResult == null ? "" : inetResult.getHostAddress();
+        }
+        return textResult;
+    }
+
+    /** Returns the address of an A or AAAA record. A new InetAddress is built each time this
+     * method is called.
+     *
+     * @return The address this record resolves to, or null if the record is not an address.
+     */
+    public InetAddress getInetResult() {
+        if (address == null)
+            return null;
+        try {
+            return InetAddress.getByAddress(address);
+        } catch (UnknownHostException e) {
+            // Only thrown for an address of invalid length
+            return null;
+        }
+    }
+
+    /** Returns the raw bytes of the address of an A or AAAA record, without copying them.
+     *
+     * @return The address, or null if the record is not an address. The array must not be
+     *         modified.
+     */
+    byte[] getAddressBytes() {
+        return address;
+    }
+
+    /** Returns the approximate number of bytes taken by the result of this record.
+     */
+    int getResultSize() {
+        return address != null ? address.length : textResult.length();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+
+        ResourceRecord record = (ResourceRecord) o;
+
+        if (!node.equals(record.node)) return false;
+        if (address != null)
+            return Arrays.equals(address, record.address);
+        return record.address == null && textResult.equals(record.textResult);
+    }
+
+    @Override
+    public int hashCode() {
+        int result = node.hashCode();
+        result = 31 * result + (address != null ? Arrays.hashCode(address) : textResult.hashCode());
+        return result;
+    }
+}
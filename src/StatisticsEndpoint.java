@@ -0,0 +1,185 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+
+/** Snapshot of the statistics of a resolver, its cache and, if it answers queries from other
+ * programs, its server, as a single JSON object for monitoring tools. The snapshot may be
+ * taken on demand (see {@link #toJson()}), or served over HTTP: once started, every GET request
+ * to /stats is answered with a fresh snapshot.
+ *
+ * <p>Counters are totals since the resolver started. Distributions (lookup latencies, the
+ * round-trip times of every server, referral depths and CNAME chain lengths) are given as
+ * their count, mean and a few percentiles, followed by the non-empty buckets of their
+ * {@link Histogram}, each as the largest value it holds and its count. Taking a snapshot
+ * reads the counters without stopping lookups, so related counters may be slightly out of
+ * step with each other.</p>
+ */
+public class StatisticsEndpoint implements Closeable {
+
+    private static final String PATH = "/stats";
+    private static final double[] PERCENTILES = { 50, 90, 99, 99.9 };
+    private static final String[] PERCENTILE_NAMES = { "p50", "p90", "p99", "p999" };
+
+    private final Resolver resolver;
+    private final DNSCache cache;
+    private final TcpTransport tcpTransport;
+    private final Prefetcher prefetcher;
+    private final DNSServer server;
+    private HttpServer httpServer;
+
+    /** Creates an endpoint. Nothing is served until started.
+     *
+     * @param resolver     Resolver whose statistics, and those of its cache, are reported.
+     * @param tcpTransport Transport used by the resolver for truncated responses.
+     * @param prefetcher   Prefetcher refreshing the cache of the resolver.
+     * @param server       Server answering queries through the resolver, or null if none.
+     */
+    public StatisticsEndpoint(Resolver resolver, TcpTransport tcpTransport, Prefetcher prefetcher, DNSServer server) {
+        this.resolver = resolver;
+        this.cache = resolver.getCache();
+        this.tcpTransport = tcpTransport;
+        this.prefetcher = prefetcher;
+        this.server = server;
+    }
+
+    /** Starts serving snapshots over HTTP on a background thread. Does nothing if already
+     * started.
+     *
+     * @param address Address and port to listen on; port 0 picks a free port.
+     * @return The address the endpoint listens on.
+     * @throws IOException If the address could not be bound.
+     */
+    public synchronized InetSocketAddress start(InetSocketAddress address) throws IOException {
+        if (httpServer == null) {
+            HttpServer created = HttpServer.create(address, 0);
+            created.createContext(PATH, this::handle);
+            created.setExecutor(Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "dns-statistics");
+                thread.setDaemon(true);
+                return thread;
+            }));
+            created.start();
+            httpServer = created;
+        }
+        return httpServer.getAddress();
+    }
+
+    /** Stops serving snapshots over HTTP, if started.
+     */
+    @Override
+    public synchronized void close() {
+        if (httpServer != null) {
+            httpServer.stop(0);
+            httpServer = null;
+        }
+    }
+
+    /** Returns a snapshot of the current statistics.
+     *
+     * @return A JSON object, on a single line.
+     */
+    public String toJson() {
+        StringBuilder json = new StringBuilder(1024);
+        json.append("{\"resolver\":{");
+        appendField(json, "upstreamResolutions", resolver.getUpstreamResolutionCount()).append(',');
+        appendField(json, "coalesced", resolver.getCoalescedQueryCount()).append(',');
+        appendField(json, "inFlight", resolver.getInFlightCount()).append(',');
+        appendField(json, "sentQueries", resolver.getSentQueryCount()).append(',');
+        appendField(json, "timedOutQueries", resolver.getTimedOutQueryCount()).append(',');
+        appendField(json, "hedged", resolver.getHedgedQueryCount()).append(',');
+        appendField(json, "tcpFallbacks", resolver.getTcpFallbackCount()).append(',');
+        appendField(json, "tcpConnectionsOpened", tcpTransport.getOpenedConnectionCount()).append(',');
+        appendField(json, "staleAnswers", resolver.getStaleAnswerCount()).append(',');
+        appendField(json, "prefetched", prefetcher.getStartedRefreshCount()).append(',');
+        appendField(json, "prefetchesDeclined", prefetcher.getDeclinedRefreshCount()).append(',');
+        appendHistogram(json, "lookupMicros", resolver.getLookupLatencies()).append(',');
+        appendHistogram(json, "referralDepth", resolver.getReferralDepths()).append(',');
+        appendHistogram(json, "cnameChainLength", resolver.getCnameChainLengths());
+
+        json.append("},\"cache\":{");
+        long hits = cache.getHitCount();
+        long misses = cache.getMissCount();
+        appendField(json, "entries", cache.getEntryCount()).append(',');
+        appendField(json, "bytes", cache.getWeight()).append(',');
+        appendField(json, "hits", hits).append(',');
+        appendField(json, "misses", misses).append(',');
+        json.append("\"hitRatio\":").append(String.format(Locale.ROOT, "%.4f",
+                hits + misses == 0 ? 0.0 : (double) hits / (hits + misses))).append(',');
+        appendField(json, "expired", cache.getExpirationCount()).append(',');
+        appendField(json, "evicted", cache.getEvictionCount()).append(',');
+        appendField(json, "admitted", cache.getAdmissionCount()).append(',');
+        appendField(json, "rejected", cache.getRejectionCount());
+        json.append('}');
+
+        if (server != null) {
+            json.append(",\"server\":{");
+            appendField(json, "received", server.getReceivedQueryCount()).append(',');
+            appendField(json, "dropped", server.getDroppedQueryCount()).append(',');
+            appendField(json, "failed", server.getFailedQueryCount()).append(',');
+            appendField(json, "encodedHits", server.getEncodedAnswers().getHitCount()).append(',');
+            appendField(json, "encodedMisses", server.getEncodedAnswers().getMissCount());
+            json.append('}');
+        }
+
+        json.append(",\"servers\":[");
+        int length = json.length();
+        resolver.getInfrastructure().forEachServer((address, statistics) -> {
+            if (json.length() > length)
+                json.append(',');
+            json.append("{\"address\":\"").append(address.getHostAddress()).append("\",");
+            appendField(json, "srtt", statistics.getSmoothedRTT()).append(',');
+            appendField(json, "rttvar", statistics.getRTTVariation()).append(',');
+            appendField(json, "queries", statistics.getQueries()).append(',');
+            appendField(json, "responses", statistics.getResponses()).append(',');
+            appendField(json, "timeouts", statistics.getTimeouts()).append(',');
+            appendHistogram(json, "rttMillis", statistics.getRoundTripTimes()).append('}');
+        });
+        return json.append("]}").toString();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            if (!exchange.getRequestMethod().equals("GET")) {
+                exchange.getResponseHeaders().set("Allow", "GET");
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            byte[] body = (toJson() + "\n").getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        }
+    }
+
+    private static StringBuilder appendField(StringBuilder json, String name, long value) {
+        return json.append('"').append(name).append("\":").append(value);
+    }
+
+    private static StringBuilder appendHistogram(StringBuilder json, String name, Histogram.Snapshot histogram) {
+        json.append('"').append(name).append("\":{");
+        appendField(json, "count", histogram.getCount()).append(',');
+        json.append("\"mean\":").append(String.format(Locale.ROOT, "%.1f", histogram.getMean()));
+        for (int i = 0; i < PERCENTILES.length; i++)
+            appendField(json.append(','), PERCENTILE_NAMES[i], histogram.getPercentile(PERCENTILES[i]));
+        json.append(",\"buckets\":[");
+        boolean first = true;
+        for (int i = 0; i < histogram.getBucketCount(); i++) {
+            if (histogram.getCount(i) == 0)
+                continue;
+            if (!first)
+                json.append(',');
+            first = false;
+            json.append('[').append(histogram.getUpperBound(i)).append(',').append(histogram.getCount(i)).append(']');
+        }
+        return json.append("]}");
+    }
+}
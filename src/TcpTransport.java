@@ -0,0 +1,304 @@
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/** TCP transport, used to repeat queries whose UDP response was truncated. Connections are
+ * kept open and reused for later queries to the same server, and queries are pipelined as
+ * described in RFC 7766: any number of queries may be outstanding on a connection, and their
+ * responses are matched by transaction ID and question, in whatever order they arrive. Each
+ * connection has a reader thread, which closes the connection once it has been idle for a
+ * while with no query outstanding. A query that was written to a connection the server then
+ * closed is sent again, once, on a new connection.
+ */
+public class TcpTransport implements Closeable {
+
+    private static final int IDLE_TIMEOUT = 10000;
+
+    private final ConcurrentMap<InetSocketAddress, Connection> connections = new ConcurrentHashMap<>();
+    private final LongAdder openedConnections = new LongAdder();
+    private final LongAdder queries = new LongAdder();
+    private volatile boolean closed = false;
+
+    /** Sends a query to a server over TCP and returns a future that is completed with the
+     * matching response. An open connection to the server is reused if there is one; otherwise
+     * a new connection is opened, which blocks the caller until it is established. The
+     * transaction ID in the first two bytes of the query is replaced by one that is unique on
+     * the connection. If the connection is closed before the response arrives, the query is
+     * sent again on a new connection, once. The future is completed exceptionally with a
+     * TimeoutException if no response arrives within the timeout.
+     *
+     * @param server        Address and port of the server the query is sent to.
+     * @param query         Encoded DNS query message, from position zero to the limit.
+     * @param question      Question contained in the query, used to validate the response.
+     * @param timeoutMillis Time to wait for a response, in milliseconds.
+     * @return A future completed with the raw response message.
+     */
+    public CompletableFuture<byte[]> query(InetSocketAddress server, ByteBuffer query, DNSNode question,
+                                           long timeoutMillis) {
+        CompletableFuture<byte[]> future = new CompletableFuture<>();
+        if (closed) {
+            future.completeExceptionally(new IOException("Transport is closed"));
+            return future;
+        }
+
+        // Two-byte length prefix, followed by the message (RFC 1035, section 4.2.2)
+        int length = query.limit();
+        byte[] message = new byte[length + 2];
+        message[0] = (byte) (length >>> 8);
+        message[1] = (byte) length;
+        query.get(0, message, 2, length);
+
+        // The server may close the connection before responding; the new connection is opened
+        // off the reader thread of the closed one, which fails the queries outstanding on it
+        return send(server, message, question, timeoutMillis).exceptionallyComposeAsync(error ->
+                error instanceof ConnectionClosedException && !closed ?
+                        send(server, message, question, timeoutMillis) : CompletableFuture.failedFuture(error));
+    }
+
+    /** Sends a length-prefixed query on a connection to a server, and returns a future that
+     * is completed with the matching response.
+     */
+    private CompletableFuture<byte[]> send(InetSocketAddress server, byte[] message, DNSNode question,
+                                           long timeoutMillis) {
+        CompletableFuture<byte[]> future = new CompletableFuture<>();
+        // A reused connection may have been closed by the server; retry once on a new one
+        for (int attempt = 0; attempt < 2; attempt++) {
+            Connection connection;
+            try {
+                connection = getConnection(server, timeoutMillis);
+            } catch (IOException e) {
+                future.completeExceptionally(e);
+                return future;
+            }
+            if (connection.send(message, question.getHostName(), question.getType().getCode(), future)) {
+                queries.increment();
+                return future.orTimeout(timeoutMillis, TimeUnit.MILLISECONDS);
+            }
+        }
+        future.completeExceptionally(new IOException("Connection closed by " + server));
+        return future;
+    }
+
+    /** Returns the number of connections currently open.
+     *
+     * @return Number of open connections.
+     */
+    public int getOpenConnectionCount() {
+        return connections.size();
+    }
+
+    /** Returns the number of connections opened since the transport was created.
+     *
+     * @return Number of connections opened.
+     */
+    public long getOpenedConnectionCount() {
+        return openedConnections.sum();
+    }
+
+    /** Returns the number of queries sent over TCP.
+     *
+     * @return Number of queries sent.
+     */
+    public long getQueryCount() {
+        return queries.sum();
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        for (Connection connection : connections.values())
+            connection.close();
+    }
+
+    private Connection getConnection(InetSocketAddress server, long timeoutMillis) throws IOException {
+        Connection connection = connections.get(server);
+        if (connection != null && connection.open)
+            return connection;
+
+        Socket socket = new Socket();
+        try {
+            socket.setTcpNoDelay(true);
+            socket.setSoTimeout(IDLE_TIMEOUT);
+            socket.connect(server, (int) Math.min(Integer.MAX_VALUE, Math.max(1, timeoutMillis)));
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+        Connection created = new Connection(server, socket);
+        Connection winner = connections.compute(server, (key, current) ->
+                current != null && current.open ? current : created);
+        if (winner != created) {
+            // Another thread connected first
+            socket.close();
+            return winner;
+        }
+        openedConnections.increment();
+        created.start();
+        return created;
+    }
+
+    /** A connection to a server, with the queries outstanding on it by transaction ID.
+     */
+    private final class Connection {
+
+        private final InetSocketAddress server;
+        private final Socket socket;
+        private final DataInputStream in;
+        private final OutputStream out;
+        private final ConcurrentMap<Integer, PendingQuery> pending = new ConcurrentHashMap<>();
+        private volatile boolean open = true;
+
+        private Connection(InetSocketAddress server, Socket socket) throws IOException {
+            this.server = server;
+            this.socket = socket;
+            this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            this.out = new BufferedOutputStream(socket.getOutputStream());
+        }
+
+        private void start() {
+            Thread reader = new Thread(this::receiveLoop, "dns-tcp-reader");
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        /** Sends a length-prefixed query on this connection, after setting its transaction ID.
+         *
+         * @return false if the connection is closed, or could not be written to.
+         */
+        private boolean send(byte[] message, String hostName, int type, CompletableFuture<byte[]> future) {
+            PendingQuery query = new PendingQuery(hostName, type, future);
+            int transactionId;
+            do {
+                transactionId = ThreadLocalRandom.current().nextInt(65536);
+            } while (pending.putIfAbsent(transactionId, query) != null);
+            final int registered = transactionId;
+            future.whenComplete((response, error) -> pending.remove(registered, query));
+
+            message[2] = (byte) (transactionId >>> 8);
+            message[3] = (byte) transactionId;
+            synchronized (out) {
+                if (open) {
+                    try {
+                        out.write(message);
+                        out.flush();
+                        return true;
+                    } catch (IOException e) {
+                        // closed below
+                    }
+                }
+            }
+            pending.remove(registered, query);
+            close();
+            return false;
+        }
+
+        /** Body of the reader thread. Reads responses until the connection fails, or has been
+         * idle for IDLE_TIMEOUT with no query outstanding.
+         */
+        private void receiveLoop() {
+            DNSMessageParser parser = new DNSMessageParser();
+            try {
+                while (true) {
+                    int first;
+                    try {
+                        first = in.read();
+                    } catch (SocketTimeoutException e) {
+                        if (closeIfIdle())
+                            return;
+                        continue;
+                    }
+                    if (first < 0)
+                        return;
+                    int length = (first << 8) | in.readUnsignedByte();
+                    byte[] response = new byte[length];
+                    in.readFully(response);
+                    deliver(parser, response);
+                }
+            } catch (IOException e) {
+                // connection lost, fail the outstanding queries below
+            } finally {
+                close();
+            }
+        }
+
+        private void deliver(DNSMessageParser parser, byte[] response) {
+            try {
+                parser.reset(ByteBuffer.wrap(response));
+                if (!parser.isResponse() || parser.getQuestionCount() != 1)
+                    return;
+                parser.nextQuestion();
+            } catch (DNSFormatException e) {
+                return;
+            }
+            PendingQuery query = pending.get(parser.getId());
+            if (query != null && query.type == parser.getType() && query.hostName.equals(DNSNode.canonicalName(parser.getName())))
+                query.future.complete(response);
+        }
+
+        /** Closes the connection if no query is outstanding on it. Queries are registered before
+         * they are written, under the same lock, so a query is either seen here or not written.
+         *
+         * @return true if the connection was closed.
+         */
+        private boolean closeIfIdle() {
+            synchronized (out) {
+                if (!open)
+                    return true;
+                if (!pending.isEmpty())
+                    return false;
+                open = false;
+            }
+            release();
+            return true;
+        }
+
+        private void close() {
+            synchronized (out) {
+                if (!open)
+                    return;
+                open = false;
+            }
+            release();
+        }
+
+        /** Forgets a connection that was just marked closed, and fails its outstanding queries.
+         */
+        private void release() {
+            connections.remove(server, this);
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+            for (PendingQuery query : pending.values())
+                query.future.completeExceptionally(new ConnectionClosedException(server));
+        }
+    }
+
+    /** Signals that a connection was closed while a query was outstanding on it.
+     */
+    private static final class ConnectionClosedException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        private ConnectionClosedException(InetSocketAddress server) {
+            super("Connection to " + server + " closed");
+        }
+    }
+
+    private static final class PendingQuery {
+
+        private final String hostName;
+        private final int type;
+        private final CompletableFuture<byte[]> future;
+
+        private PendingQuery(String hostName, int type, CompletableFuture<byte[]> future) {
+            this.hostName = hostName;
+            this.type = type;
+            this.future = future;
+        }
+    }
+}
@@ -0,0 +1,307 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/** Non-blocking UDP transport shared by all lookups. Queries are sent on a small set of
+ * datagram channels, all registered with a single selector that is serviced by one I/O
+ * thread. Each outstanding query is identified by its transaction ID, the channel it was sent
+ * on, the server it was sent to and its question; responses are matched against these and
+ * delivered to the waiting query through a future, so a slow server only delays the queries
+ * that were sent to it.
+ *
+ * <p>To make spoofed responses harder to get accepted, the source port of a query is as
+ * unpredictable as its transaction ID (RFC 5452). Each query is sent on a channel picked at
+ * random, independently of its transaction ID, and a channel only sends a limited number of
+ * queries before it is replaced by one bound to a new ephemeral port. A replaced channel is
+ * closed once the queries sent on it have been answered or timed out.</p>
+ */
+public class UdpTransport implements Closeable {
+
+    private static final int DEFAULT_CHANNEL_COUNT = 16;
+    // Queries sent on a channel before it is replaced by one bound to a new port
+    private static final int QUERIES_PER_CHANNEL = 128;
+    // Largest UDP payload, so no response is cut off whatever EDNS0 payload size was advertised
+    private static final int RECEIVE_BUFFER_SIZE = 65535;
+
+    private final Selector selector;
+    private final AtomicReferenceArray<Channel> channels;
+    private final ConcurrentMap<PendingKey, CompletableFuture<byte[]>> pending = new ConcurrentHashMap<>();
+    private final Thread ioThread;
+    private final DNSMessageParser responseParser = new DNSMessageParser();
+    private volatile boolean closed = false;
+
+    public UdpTransport() throws IOException {
+        this(DEFAULT_CHANNEL_COUNT);
+    }
+
+    /** Creates a transport using a specific number of sockets at a time. Each socket is bound
+     * to an ephemeral local port, and is replaced by a socket bound to another one after
+     * sending a limited number of queries.
+     *
+     * @param channelCount Number of UDP sockets queries are spread over.
+     * @throws IOException If the sockets or selector could not be opened.
+     */
+    public UdpTransport(int channelCount) throws IOException {
+        selector = Selector.open();
+        channels = new AtomicReferenceArray<>(channelCount);
+        for (int i = 0; i < channelCount; i++)
+            channels.set(i, new Channel());
+        ioThread = new Thread(this::receiveLoop, "dns-udp-transport");
+        ioThread.setDaemon(true);
+        ioThread.start();
+    }
+
+    /** Sends a query to a server and returns a future that is completed with the matching
+     * response. The transaction ID in the first two bytes of the query is replaced by one that
+     * is unique among the queries currently outstanding to the same server for the same
+     * question. The query is sent before this method returns, so the buffer may be reused
+     * afterwards. The future is completed exceptionally with a TimeoutException if no response
+     * arrives within the timeout.
+     *
+     * @param server        Address and port of the server the query is sent to.
+     * @param query         Encoded DNS query message, from position zero to the limit.
+     * @param question      Question contained in the query, used to validate the response.
+     * @param timeoutMillis Time to wait for a response, in milliseconds.
+     * @return A future completed with the raw response message.
+     */
+    public CompletableFuture<byte[]> query(InetSocketAddress server, ByteBuffer query, DNSNode question,
+                                           long timeoutMillis) {
+        CompletableFuture<byte[]> future = new CompletableFuture<>();
+        if (closed) {
+            future.completeExceptionally(new IOException("Transport is closed"));
+            return future;
+        }
+
+        Channel channel;
+        try {
+            channel = acquireChannel();
+        } catch (IOException e) {
+            future.completeExceptionally(e);
+            return future;
+        }
+
+        PendingKey key;
+        do {
+            int transactionId = ThreadLocalRandom.current().nextInt(65536);
+            key = new PendingKey(transactionId, channel.channel, server, question.getHostName(),
+                    question.getType().getCode());
+        } while (pending.putIfAbsent(key, future) != null);
+
+        final PendingKey registered = key;
+        future.whenComplete((response, error) -> {
+            pending.remove(registered, future);
+            channel.release();
+        });
+
+        query.putShort(0, (short) key.transactionId);
+        query.rewind();
+        try {
+            if (channel.channel.send(query, server) == 0)
+                throw new IOException("Send buffer full");
+        } catch (IOException e) {
+            future.completeExceptionally(e);
+            return future;
+        }
+        return future.orTimeout(timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /** Returns the number of queries waiting for a response.
+     *
+     * @return Number of outstanding queries.
+     */
+    public int getOutstandingQueries() {
+        return pending.size();
+    }
+
+    /** Picks a channel at random and reserves it for a query. A channel that has sent its
+     * share of queries is replaced by a new one, and another channel is picked.
+     */
+    private Channel acquireChannel() throws IOException {
+        while (true) {
+            int index = ThreadLocalRandom.current().nextInt(channels.length());
+            Channel channel = channels.get(index);
+            if (channel.tryAcquire())
+                return channel;
+            synchronized (channel) {
+                // Only the first query to find the channel used up replaces it
+                if (channels.get(index) == channel)
+                    channels.set(index, new Channel());
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        try {
+            selector.close();
+        } catch (IOException ignored) {
+        }
+        for (int i = 0; i < channels.length(); i++)
+            channels.get(i).close();
+        for (CompletableFuture<byte[]> future : pending.values())
+            future.completeExceptionally(new IOException("Transport is closed"));
+    }
+
+    /** Body of the I/O thread. Reads every datagram available on the channels and hands it to
+     * the query it answers; datagrams that do not match any outstanding query are dropped.
+     */
+    private void receiveLoop() {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(RECEIVE_BUFFER_SIZE);
+        while (!closed) {
+            try {
+                selector.select();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey selectionKey = keys.next();
+                    keys.remove();
+                    DatagramChannel channel = (DatagramChannel) selectionKey.channel();
+                    SocketAddress source;
+                    try {
+                        while ((source = channel.receive(buffer.clear())) != null) {
+                            buffer.flip();
+                            deliver(channel, (InetSocketAddress) source, buffer);
+                        }
+                    } catch (ClosedChannelException e) {
+                        // Replaced, and closed by the last query waiting on it
+                    }
+                }
+            } catch (ClosedSelectorException e) {
+                return;
+            } catch (IOException e) {
+                if (!closed)
+                    e.printStackTrace();
+            }
+        }
+    }
+
+    /** Hands a datagram to the query it answers. The datagram must be a response with a single
+     * question; the transaction ID, channel, source address and question must match an
+     * outstanding query. Only called by the I/O thread.
+     */
+    private void deliver(DatagramChannel channel, InetSocketAddress source, ByteBuffer datagram) {
+        PendingKey key;
+        try {
+            responseParser.reset(datagram);
+            if (!responseParser.isResponse() || responseParser.getQuestionCount() != 1)
+                return;
+            responseParser.nextQuestion();
+            key = new PendingKey(responseParser.getId(), channel, source,
+                    DNSNode.canonicalName(responseParser.getName()), responseParser.getType());
+        } catch (DNSFormatException e) {
+            return;
+        }
+
+        CompletableFuture<byte[]> future = pending.get(key);
+        if (future != null) {
+            byte[] response = new byte[datagram.remaining()];
+            datagram.get(response);
+            future.complete(response);
+        }
+    }
+
+    /** A datagram channel bound to its own ephemeral port, with the number of queries it may
+     * still send and the number of queries sent on it that are still outstanding.
+     */
+    private final class Channel {
+
+        private final DatagramChannel channel;
+        private final AtomicInteger remaining = new AtomicInteger(QUERIES_PER_CHANNEL);
+        private final AtomicInteger outstanding = new AtomicInteger();
+
+        private Channel() throws IOException {
+            channel = DatagramChannel.open();
+            try {
+                channel.configureBlocking(false);
+                channel.bind(null);
+                channel.register(selector, SelectionKey.OP_READ);
+            } catch (IOException | ClosedSelectorException e) {
+                channel.close();
+                throw e instanceof IOException ? (IOException) e : new IOException("Transport is closed");
+            }
+            // Have the I/O thread select the new channel
+            selector.wakeup();
+        }
+
+        /** Reserves the channel for a query, unless it has already sent its share of queries.
+         */
+        private boolean tryAcquire() {
+            outstanding.incrementAndGet();
+            if (remaining.getAndDecrement() > 0)
+                return true;
+            release();
+            return false;
+        }
+
+        /** Releases the channel once a query sent on it is over, closing the channel if it has
+         * been replaced and no other query is waiting on it.
+         */
+        private void release() {
+            if (outstanding.decrementAndGet() == 0 && remaining.get() <= 0)
+                close();
+        }
+
+        private void close() {
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+            // The socket is only released once the I/O thread deregisters the channel
+            selector.wakeup();
+        }
+    }
+
+    /** Identifies an outstanding query: transaction ID, channel, server and question. Host
+     * names are canonical, since servers may echo the question back in a different case.
+     */
+    private static final class PendingKey {
+
+        private final int transactionId;
+        private final DatagramChannel channel;
+        private final InetSocketAddress server;
+        private final String hostName;
+        private final int type;
+
+        private PendingKey(int transactionId, DatagramChannel channel, InetSocketAddress server,
+                           String hostName, int type) {
+            this.transactionId = transactionId;
+            this.channel = channel;
+            this.server = server;
+            this.hostName = hostName;
+            this.type = type;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+
+            PendingKey that = (PendingKey) o;
+
+            if (transactionId != that.transactionId) return false;
+            if (type != that.type) return false;
+            if (channel != that.channel) return false;
+            if (!server.equals(that.server)) return false;
+            return hostName.equals(that.hostName);
+        }
+
+        @Override
+        public int hashCode() {
+            int result = transactionId;
+            result = 31 * result + server.hashCode();
+            result = 31 * result + type;
+            return result;
+        }
+    }
+}
@@ -0,0 +1,244 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+
+/** End-to-end test of {@link DNSServer} over the loopback interface. A server is started on
+ * an ephemeral port, in front of a cache filled with the records and negative answers of a
+ * small zone, so every query is answered without any upstream server. Queries are then sent
+ * over UDP and TCP, and the responses are checked: the answers themselves, truncation of
+ * answers too large for UDP with and without EDNS0, and NXDOMAIN and NODATA responses with
+ * the SOA record of the zone in their authority section.
+ *
+ * <p>Run with {@code make test}, or with {@code java DNSServerLoopbackTest} once compiled
+ * along with the sources. The process exits with status 1 at the first failed check.</p>
+ */
+public class DNSServerLoopbackTest {
+
+    private static final int RD = 0x0100;
+    private static final int RCODE_NOERROR = 0;
+    private static final int RCODE_NXDOMAIN = 3;
+    private static final int TYPE_OPT = 41;
+    private static final int MAX_EDNS_PAYLOAD = 1232;
+    private static final int TIMEOUT = 5000;
+
+    private static final String ZONE = "example.com";
+    private static final String SOA = "ns1.example.com admin.example.com 1 3600 600 86400 60";
+    // 40 A records: 684 bytes, too large for plain UDP but within the EDNS0 limit
+    private static final int MEDIUM_COUNT = 40;
+    // 100 A records: 1633 bytes, too large for UDP even with EDNS0
+    private static final int LARGE_COUNT = 100;
+
+    private static int checks;
+    private static int nextId = 1;
+
+    public static void main(String[] args) throws Exception {
+        DNSCache cache = DNSCache.getInstance();
+        populate(cache);
+
+        UdpTransport transport = new UdpTransport();
+        TcpTransport tcpTransport = new TcpTransport();
+        Resolver resolver = new Resolver(InetAddress.getLoopbackAddress(), cache, transport, tcpTransport);
+        DNSServer server = new DNSServer(resolver,
+                new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 4);
+        try {
+            InetSocketAddress address = server.getLocalAddress();
+            testUdpAnswer(address);
+            testTcpAnswer(address);
+            testTruncation(address);
+            testNameError(address);
+            testNoData(address);
+        } finally {
+            server.close();
+            transport.close();
+            tcpTransport.close();
+        }
+        System.out.println(checks + " checks passed");
+    }
+
+    private static void populate(DNSCache cache) throws IOException {
+        cache.addResult(new ResourceRecord(ZONE, RecordType.SOA, 3600, SOA));
+        cache.addResult(new ResourceRecord("www." + ZONE, RecordType.A, 3600,
+                InetAddress.getByAddress(new byte[] { 10, 0, 0, 1 })));
+        cache.addResult(new ResourceRecord("www." + ZONE, RecordType.A, 3600,
+                InetAddress.getByAddress(new byte[] { 10, 0, 0, 2 })));
+        for (int i = 0; i < LARGE_COUNT; i++) {
+            byte[] address = { 10, 1, 0, (byte) i };
+            if (i < MEDIUM_COUNT)
+                cache.addResult(new ResourceRecord("medium." + ZONE, RecordType.A, 3600, address));
+            cache.addResult(new ResourceRecord("large." + ZONE, RecordType.A, 3600, address));
+        }
+        cache.addNegativeResult(new DNSNode("missing." + ZONE, RecordType.A), 60, true);
+        cache.addNegativeResult(new DNSNode("www." + ZONE, RecordType.AAAA), 60, false);
+    }
+
+    private static void testUdpAnswer(InetSocketAddress server) throws Exception {
+        DNSNode node = new DNSNode("www." + ZONE, RecordType.A);
+        // The second query is answered from the encoded answer of the first one
+        for (int i = 0; i < 2; i++) {
+            DNSMessageParser response = udp(server, node, 0);
+            checkHeader(response, RCODE_NOERROR, false);
+            check(response.getAnswerCount() == 2, "UDP answer count: " + response.getAnswerCount());
+            checkAnswers(response, node, 2);
+        }
+    }
+
+    private static void testTcpAnswer(InetSocketAddress server) throws Exception {
+        DNSNode node = new DNSNode("large." + ZONE, RecordType.A);
+        DNSMessageParser response = tcp(server, node);
+        checkHeader(response, RCODE_NOERROR, false);
+        check(response.getAnswerCount() == LARGE_COUNT, "TCP answer count: " + response.getAnswerCount());
+        checkAnswers(response, node, LARGE_COUNT);
+    }
+
+    private static void testTruncation(InetSocketAddress server) throws Exception {
+        DNSNode medium = new DNSNode("medium." + ZONE, RecordType.A);
+        DNSNode large = new DNSNode("large." + ZONE, RecordType.A);
+
+        DNSMessageParser response = udp(server, medium, 0);
+        checkHeader(response, RCODE_NOERROR, true);
+        check(response.getAdditionalCount() == 0, "OPT record in a response to a query without one");
+
+        response = udp(server, medium, 4096);
+        checkHeader(response, RCODE_NOERROR, false);
+        check(response.getAnswerCount() == MEDIUM_COUNT, "EDNS0 answer count: " + response.getAnswerCount());
+        checkAnswers(response, medium, MEDIUM_COUNT);
+        checkOpt(response);
+
+        response = udp(server, medium, 600);
+        checkHeader(response, RCODE_NOERROR, true);
+
+        response = udp(server, large, 4096);
+        checkHeader(response, RCODE_NOERROR, true);
+        checkOpt(response);
+    }
+
+    private static void testNameError(InetSocketAddress server) throws Exception {
+        DNSNode node = new DNSNode("missing." + ZONE, RecordType.A);
+        checkNegative(udp(server, node, 0), RCODE_NXDOMAIN, "UDP NXDOMAIN");
+        checkNegative(tcp(server, node), RCODE_NXDOMAIN, "TCP NXDOMAIN");
+    }
+
+    private static void testNoData(InetSocketAddress server) throws Exception {
+        DNSNode node = new DNSNode("www." + ZONE, RecordType.AAAA);
+        checkNegative(udp(server, node, 0), RCODE_NOERROR, "UDP NODATA");
+        checkNegative(tcp(server, node), RCODE_NOERROR, "TCP NODATA");
+    }
+
+    /** Sends a query over UDP, with an OPT record if a payload size is given, and returns the
+     * parsed response.
+     */
+    private static DNSMessageParser udp(InetSocketAddress server, DNSNode node, int payloadSize) throws Exception {
+        int id = nextId++;
+        ByteBuffer query = DNSQueryEncoder.encode(node, RD, payloadSize);
+        query.putShort(0, (short) id);
+        byte[] bytes = new byte[query.remaining()];
+        query.get(bytes);
+        try (DatagramSocket socket = new DatagramSocket()) {
+            socket.setSoTimeout(TIMEOUT);
+            socket.send(new DatagramPacket(bytes, bytes.length, server));
+            DatagramPacket packet = new DatagramPacket(new byte[65535], 65535);
+            socket.receive(packet);
+            int limit = payloadSize > 0 ? Math.min(payloadSize, MAX_EDNS_PAYLOAD) : 512;
+            check(packet.getLength() <= limit, "UDP response of " + packet.getLength() + " bytes, limit " + limit);
+            return parse(packet.getData(), packet.getLength(), id, node);
+        }
+    }
+
+    /** Sends a query over TCP, with its length prefix, and returns the parsed response.
+     */
+    private static DNSMessageParser tcp(InetSocketAddress server, DNSNode node) throws Exception {
+        int id = nextId++;
+        ByteBuffer query = DNSQueryEncoder.encode(node, RD);
+        query.putShort(0, (short) id);
+        byte[] bytes = new byte[query.remaining()];
+        query.get(bytes);
+        try (Socket socket = new Socket()) {
+            socket.connect(server, TIMEOUT);
+            socket.setSoTimeout(TIMEOUT);
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            out.writeShort(bytes.length);
+            out.write(bytes);
+            out.flush();
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            byte[] buffer = new byte[in.readUnsignedShort()];
+            in.readFully(buffer);
+            return parse(buffer, buffer.length, id, node);
+        }
+    }
+
+    private static DNSMessageParser parse(byte[] buffer, int length, int id, DNSNode node) throws Exception {
+        DNSMessageParser parser = new DNSMessageParser();
+        parser.reset(ByteBuffer.wrap(buffer, 0, length).slice());
+        check(parser.isResponse(), "Not a response");
+        check(parser.getId() == id, "Transaction ID " + parser.getId() + ", expected " + id);
+        check(parser.getQuestionCount() == 1, "Question count: " + parser.getQuestionCount());
+        parser.nextQuestion();
+        check(new DNSNode(parser.getName(), parser.getRecordType()).equals(node),
+                "Question " + parser.getName() + ", expected " + node);
+        return parser;
+    }
+
+    private static void checkHeader(DNSMessageParser response, int rcode, boolean truncated) {
+        check(response.getResponseCode() == rcode, "Response code " + response.getResponseCode() + ", expected " + rcode);
+        check(response.isTruncated() == truncated, "TC bit " + response.isTruncated() + ", expected " + truncated);
+        check((response.getFlags() & RD) != 0, "RD bit not echoed");
+    }
+
+    /** Reads the answer section, and checks that it holds the expected number of records of
+     * the node queried.
+     */
+    private static void checkAnswers(DNSMessageParser response, DNSNode node, int count) throws Exception {
+        int found = 0;
+        while (response.hasMoreRecords()) {
+            response.nextRecord();
+            if (!response.inAnswerSection())
+                break;
+            check(new DNSNode(response.getName(), response.getRecordType()).equals(node),
+                    "Answer for " + response.getName() + " (" + response.getRecordType() + ")");
+            check(response.getAddress() != null, "Answer without an address");
+            found++;
+        }
+        check(found == count, found + " answers, expected " + count);
+    }
+
+    /** Checks that the last record of a response is an OPT record advertising the server's
+     * payload size.
+     */
+    private static void checkOpt(DNSMessageParser response) throws Exception {
+        check(response.getAdditionalCount() == 1, "Additional count: " + response.getAdditionalCount());
+        while (response.hasMoreRecords())
+            response.nextRecord();
+        check(response.getType() == TYPE_OPT, "Additional record of type " + response.getType());
+        check(response.getName().isEmpty(), "OPT record owned by " + response.getName());
+        check(response.getRecordClass() == MAX_EDNS_PAYLOAD, "EDNS0 payload size " + response.getRecordClass());
+    }
+
+    /** Checks a negative response: no answer, and the SOA record of the zone as the only
+     * authority record (RFC 2308).
+     */
+    private static void checkNegative(DNSMessageParser response, int rcode, String description) throws Exception {
+        checkHeader(response, rcode, false);
+        check(response.getAnswerCount() == 0, description + ": answer count " + response.getAnswerCount());
+        check(response.getAuthorityCount() == 1, description + ": authority count " + response.getAuthorityCount());
+        response.nextRecord();
+        check(response.inAuthoritySection() && response.getRecordType() == RecordType.SOA,
+                description + ": authority record of type " + response.getRecordType());
+        check(DNSNode.canonicalName(response.getName()).equals(ZONE),
+                description + ": SOA record owned by " + response.getName());
+        check(response.getSOAMinimum() == 60, description + ": SOA minimum " + response.getSOAMinimum());
+    }
+
+    private static void check(boolean condition, String message) {
+        checks++;
+        if (!condition) {
+            System.err.println("FAILED: " + message);
+            System.exit(1);
+        }
+    }
+}